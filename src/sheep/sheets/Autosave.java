@@ -0,0 +1,157 @@
+package sheep.sheets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically saves a sheet to a file in the text format, see {@link Sheet#encode()},
+ * without blocking updates of the sheet for longer than it takes to snapshot it.
+ * <p>
+ * A sheet is not safe to read while it is updated, so each period a task is handed to the
+ * executor of the thread that updates the sheet, e.g. {@code Platform::runLater} for the
+ * JavaFX application thread. If the sheet changed since the last save, that task takes a
+ * {@link Sheet#snapshot()}, which only copies each cell, and the snapshot is then encoded and
+ * written on a low priority background thread shared by all autosaves. The file is written
+ * to a temporary file first and atomically moved over the previous save.
+ * <pre>
+ * {@code
+ * Autosave autosave = new Autosave(sheet, Path.of("sheet.sheep"), Duration.ofMinutes(1),
+ *         Platform::runLater);
+ * ...
+ * autosave.close();
+ * }</pre>
+ */
+public final class Autosave implements AutoCloseable {
+    private static final ScheduledExecutorService BACKGROUND =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sheep-autosave");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    private final Sheet sheet;
+    private final Path file;
+    private final Executor owner;
+    private final ScheduledFuture<?> schedule;
+
+    // only used on the thread of the sheet
+    private long saved = -1;
+    private boolean writing;
+
+    private volatile long saves;
+    private volatile long skipped;
+    private volatile long failures;
+    private volatile long lastSnapshotNanos;
+    private volatile long lastWriteNanos;
+    private volatile long totalSnapshotNanos;
+    private volatile long totalWriteNanos;
+    private volatile IOException failure;
+
+    /**
+     * Start saving a sheet periodically.
+     *
+     * @param sheet    The sheet to save.
+     * @param file     The file to save to, replaced by each save.
+     * @param interval The time between saves.
+     * @param owner    Runs tasks on the thread that updates the sheet.
+     */
+    public Autosave(Sheet sheet, Path file, Duration interval, Executor owner) {
+        this.sheet = sheet;
+        this.file = file;
+        this.owner = owner;
+        long period = interval.toNanos();
+        this.schedule = BACKGROUND.scheduleWithFixedDelay(() -> owner.execute(this::snapshot),
+                period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Take a snapshot if the sheet changed, on the thread of the sheet.
+     */
+    private void snapshot() {
+        long modifications = sheet.modifications();
+        if (writing || modifications == saved || schedule.isCancelled()) {
+            skipped++;
+            return;
+        }
+        long start = System.nanoTime();
+        SheetSnapshot snapshot = sheet.snapshot();
+        lastSnapshotNanos = System.nanoTime() - start;
+        totalSnapshotNanos += lastSnapshotNanos;
+        writing = true;
+        BACKGROUND.execute(() -> {
+            boolean written = write(snapshot);
+            owner.execute(() -> {
+                writing = false;
+                if (written) {
+                    saved = modifications;
+                }
+            });
+        });
+    }
+
+    /**
+     * Write a snapshot to the file, on the background thread.
+     *
+     * @return Whether the snapshot was written.
+     */
+    private boolean write(SheetSnapshot snapshot) {
+        long start = System.nanoTime();
+        Path temporary = file.resolveSibling(file.getFileName() + ".autosave");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 1 << 16);
+                snapshot.encode(out);
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            failure = e;
+            failures++;
+            return false;
+        }
+        lastWriteNanos = System.nanoTime() - start;
+        totalWriteNanos += lastWriteNanos;
+        saves++;
+        return true;
+    }
+
+    /**
+     * The counters and timings of this autosave so far.
+     */
+    public AutosaveStatistics statistics() {
+        return new AutosaveStatistics(saves, skipped, failures,
+                lastSnapshotNanos, lastWriteNanos, totalSnapshotNanos, totalWriteNanos);
+    }
+
+    /**
+     * The reason the last failed save could not be written, if any save failed.
+     */
+    public Optional<IOException> lastFailure() {
+        return Optional.ofNullable(failure);
+    }
+
+    /**
+     * Stop saving the sheet. A save already being written is completed.
+     */
+    @Override
+    public void close() {
+        schedule.cancel(false);
+    }
+}
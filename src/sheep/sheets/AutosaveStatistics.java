@@ -0,0 +1,18 @@
+package sheep.sheets;
+
+/**
+ * Counters and timings of an {@link Autosave}.
+ *
+ * @param saves              Amount of snapshots written to the file.
+ * @param skipped            Amount of periods in which nothing was saved, as the sheet had not
+ *                           changed or the previous snapshot was still being written.
+ * @param failures           Amount of snapshots that could not be written.
+ * @param lastSnapshotNanos  Time the last snapshot took on the thread of the sheet.
+ * @param lastWriteNanos     Time the last write took on the background thread.
+ * @param totalSnapshotNanos Time every snapshot took on the thread of the sheet.
+ * @param totalWriteNanos    Time every write took on the background thread.
+ */
+public record AutosaveStatistics(long saves, long skipped, long failures,
+                                 long lastSnapshotNanos, long lastWriteNanos,
+                                 long totalSnapshotNanos, long totalWriteNanos) {
+}
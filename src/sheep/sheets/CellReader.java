@@ -0,0 +1,32 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+
+import java.util.Map;
+
+/**
+ * Read access to the numeric values of the cells of a sheet.
+ * <p>
+ * Used by compiled formulas, which only operate on numbers.
+ * If a cell does not contain a number, reading it fails with
+ * {@link #NOT_A_NUMBER} and the formula has to be evaluated
+ * through {@link Expression#value(Map)} instead.
+ */
+interface CellReader {
+    /**
+     * Thrown when a cell read by a compiled formula does not hold a number.
+     * Shared and without a stack trace as it is only used for control flow.
+     */
+    RuntimeException NOT_A_NUMBER = new RuntimeException("Not a number", null, false, false) {
+    };
+
+    /**
+     * The numeric value of the cell at the given location.
+     *
+     * @param row    A row within the spreadsheet.
+     * @param column A column within the spreadsheet.
+     * @return The value of the cell.
+     * @throws RuntimeException {@link #NOT_A_NUMBER} if the cell does not hold a number.
+     */
+    long number(int row, int column);
+}
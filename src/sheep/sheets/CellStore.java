@@ -0,0 +1,63 @@
+package sheep.sheets;
+
+import java.util.Optional;
+
+/**
+ * Primitive storage of the cells of a sheet, indexed by cell index
+ * ({@code row * columns + column}).
+ * <p>
+ * For every cell a store holds the kind and numeric value of its computed value
+ * (see {@link CellValues}) and a handle to its formula (see {@link FormulaTable}).
+ * A new store holds empty values and the default formula, handle 0, in every cell.
+ * <p>
+ * Stores either keep their data on the Java heap, see {@link HeapCellStore},
+ * or outside of it, see {@link OffHeapCellStore}.
+ */
+interface CellStore {
+    /**
+     * Amount of cells in the store.
+     *
+     * @return The amount of cells.
+     */
+    int size();
+
+    /**
+     * The kind of value held by a cell, see {@link CellValues#kind(int)}.
+     */
+    byte kind(int index);
+
+    /**
+     * Set the kind of value held by a cell.
+     */
+    void setKind(int index, byte kind);
+
+    /**
+     * The numeric value of a cell.
+     */
+    long number(int index);
+
+    /**
+     * Set the numeric value of a cell.
+     */
+    void setNumber(int index, long number);
+
+    /**
+     * The handle of the formula of a cell.
+     */
+    int formula(int index);
+
+    /**
+     * Set the handle of the formula of a cell.
+     */
+    void setFormula(int index, int handle);
+
+    /**
+     * Counters of the page accesses of the store, if it pages cells
+     * in and out of memory, see {@link PagedCellStore}.
+     *
+     * @return The page counters, or empty if the store is not paged.
+     */
+    default Optional<PageStatistics> pageStatistics() {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,268 @@
+package sheep.sheets;
+
+import sheep.core.SheetView;
+import sheep.expression.Expression;
+import sheep.expression.basic.Constant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The computed value of every cell of a sheet, stored by cell index
+ * ({@code row * columns + column}).
+ * <p>
+ * Numeric results are kept in a primitive number column next to
+ * a column of value kinds, held by a {@link CellStore}, so a cell takes about 9 bytes
+ * instead of a {@link Constant} object. {@link Expression} objects are only created
+ * when a caller asks for one through {@link #get(int)}. The rare values that are
+ * neither numbers nor empty, e.g. an unresolved reference, are kept as expressions.
+ * <p>
+ * Writes can be recorded between {@link #begin()} and {@link #commit()} so that
+ * a failed update can be undone with {@link #rollback()}.
+ */
+final class CellValues implements CellReader {
+    /**
+     * The cell holds the default expression of the sheet.
+     */
+    static final byte EMPTY = 0;
+    /**
+     * The cell holds a number.
+     */
+    static final byte NUMBER = 1;
+    /**
+     * The cell holds any other expression.
+     */
+    static final byte OTHER = 2;
+
+    private final int rows;
+    private final int columns;
+    private final Expression empty;
+    private final CellStore store;
+    private final Map<Integer, Expression> others = new HashMap<>();
+
+    // undo log of the writes since begin()
+    private boolean recording;
+    private int logSize;
+    private int[] logIndexes = new int[16];
+    private long[] logNumbers = new long[16];
+    private byte[] logKinds = new byte[16];
+    private final List<Expression> logOthers = new ArrayList<>();
+
+    /**
+     * Create a column of empty values.
+     *
+     * @param rows    Amount of rows of the sheet.
+     * @param columns Amount of columns of the sheet.
+     * @param empty   The default expression of the sheet, the value of empty cells.
+     */
+    CellValues(int rows, int columns, Expression empty) {
+        this(rows, columns, empty, new HeapCellStore(Math.multiplyExact(rows, columns)));
+    }
+
+    /**
+     * Create a column of values kept in the given store.
+     *
+     * @param rows    Amount of rows of the sheet.
+     * @param columns Amount of columns of the sheet.
+     * @param empty   The default expression of the sheet, the value of empty cells.
+     * @param store   The store of the cells, holding rows * columns empty cells.
+     */
+    CellValues(int rows, int columns, Expression empty, CellStore store) {
+        if (store.size() != Math.multiplyExact(rows, columns)) {
+            throw new IllegalArgumentException("Store of " + store.size()
+                    + " cells for a " + rows + "x" + columns + " sheet");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.empty = empty;
+        this.store = store;
+    }
+
+    /**
+     * The store holding the cells.
+     */
+    CellStore store() {
+        return store;
+    }
+
+    /**
+     * The index of the cell at the given location.
+     */
+    int index(int row, int column) {
+        return row * columns + column;
+    }
+
+    /**
+     * The kind of value held by a cell.
+     *
+     * @return One of {@link #EMPTY}, {@link #NUMBER} or {@link #OTHER}.
+     */
+    byte kind(int index) {
+        return store.kind(index);
+    }
+
+    /**
+     * The numeric value of a cell.
+     *
+     * @requires kind(index) == NUMBER
+     */
+    long number(int index) {
+        return store.number(index);
+    }
+
+    @Override
+    public long number(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            throw NOT_A_NUMBER;
+        }
+        int index = index(row, column);
+        if (store.kind(index) != NUMBER) {
+            throw NOT_A_NUMBER;
+        }
+        return store.number(index);
+    }
+
+    /**
+     * The value of a cell as an expression.
+     * Numbers are wrapped in a new {@link Constant}.
+     */
+    Expression get(int index) {
+        return switch (store.kind(index)) {
+            case NUMBER -> new Constant(store.number(index));
+            case OTHER -> others.get(index);
+            default -> empty;
+        };
+    }
+
+    /**
+     * The rendering of the value of a cell, same as {@code get(index).render()}
+     * but without creating an expression for numbers.
+     */
+    String render(int index) {
+        if (store.kind(index) == NUMBER) {
+            return Long.toString(store.number(index));
+        }
+        return get(index).render();
+    }
+
+    /**
+     * Store the value of a cell.
+     */
+    void set(int index, Expression value) {
+        if (value instanceof Constant constant) {
+            setNumber(index, constant.getValue());
+            return;
+        }
+        record(index);
+        if (value == empty) {
+            store.setKind(index, EMPTY);
+            others.remove(index);
+        } else {
+            store.setKind(index, OTHER);
+            others.put(index, value);
+        }
+    }
+
+    /**
+     * Store a number as the value of a cell.
+     */
+    void setNumber(int index, long value) {
+        record(index);
+        if (store.kind(index) == OTHER) {
+            others.remove(index);
+        }
+        store.setKind(index, NUMBER);
+        store.setNumber(index, value);
+    }
+
+    /**
+     * Check that a range of cells is within a sheet and fits into arrays of the given length,
+     * see {@link RangeView#readValues(int, int, int, int, RangeView.Order, long[], byte[], int)}.
+     *
+     * @throws IndexOutOfBoundsException If it does not.
+     */
+    static void checkRange(SheetView view, int row, int column, int rows, int columns,
+                           int length, int offset) {
+        Objects.checkFromIndexSize(row, rows, view.getRows());
+        Objects.checkFromIndexSize(column, columns, view.getColumns());
+        Objects.checkFromIndexSize(offset, rows * columns, length);
+    }
+
+    /**
+     * Start recording writes so they can be undone.
+     */
+    void begin() {
+        recording = true;
+        logSize = 0;
+    }
+
+    /**
+     * Keep every write since {@link #begin()}.
+     */
+    void commit() {
+        commit(null);
+    }
+
+    /**
+     * Keep every write since {@link #begin()},
+     * adding the cells whose value differs from before to the given set.
+     *
+     * @param changed Receives the indexes of the changed cells, or null.
+     */
+    void commit(BitSet changed) {
+        if (changed != null) {
+            for (int i = 0; i < logSize; i++) {
+                int index = logIndexes[i];
+                byte kind = store.kind(index);
+                if (kind != logKinds[i]
+                        || kind == NUMBER && store.number(index) != logNumbers[i]
+                        || kind == OTHER && !Objects.equals(others.get(index), logOthers.get(i))) {
+                    changed.set(index);
+                }
+            }
+        }
+        recording = false;
+        logSize = 0;
+        logOthers.clear();
+    }
+
+    /**
+     * Undo every write since {@link #begin()}.
+     */
+    void rollback() {
+        recording = false;
+        for (int i = logSize - 1; i >= 0; i--) {
+            int index = logIndexes[i];
+            store.setKind(index, logKinds[i]);
+            store.setNumber(index, logNumbers[i]);
+            if (logKinds[i] == OTHER) {
+                others.put(index, logOthers.get(i));
+            } else {
+                others.remove(index);
+            }
+        }
+        logSize = 0;
+        logOthers.clear();
+    }
+
+    private void record(int index) {
+        if (!recording) {
+            return;
+        }
+        if (logSize == logIndexes.length) {
+            logIndexes = Arrays.copyOf(logIndexes, logSize * 2);
+            logNumbers = Arrays.copyOf(logNumbers, logSize * 2);
+            logKinds = Arrays.copyOf(logKinds, logSize * 2);
+        }
+        logIndexes[logSize] = index;
+        logNumbers[logSize] = store.number(index);
+        logKinds[logSize] = store.kind(index);
+        logOthers.add(logKinds[logSize] == OTHER ? others.get(index) : null);
+        logSize++;
+    }
+}
@@ -0,0 +1,303 @@
+package sheep.sheets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A sheet saved as independent blocks of rows, so that saving again
+ * only rewrites the blocks of rows that changed.
+ * <p>
+ * A chunked sheet is two files. The data file only ever grows: each save appends
+ * the changed blocks, every block holds {@link #BLOCK_ROWS} rows in the text format of
+ * {@link Sheet#encode()}. The index file, at the path of the sheet, gives the size of
+ * the sheet and the position of the current version of every block in the data file.
+ * <pre>
+ * index  "SHEEPIDX", int version, int rows, int columns, int block rows,
+ *        long data file generation, long offset and int length of every block,
+ *        long CRC32C of the above
+ * data   the path of the index followed by "." generation ".blocks"
+ * </pre>
+ * A save first appends the changed blocks to the data file and forces them to disk,
+ * then writes a new index to a temporary file and atomically moves it over the old one.
+ * A crash at any point leaves either the old or the new index in place,
+ * each referring to complete blocks.
+ * <p>
+ * Once more than half of the data file is made of replaced blocks,
+ * every block is written to a new data file of the next generation and
+ * the old data file is removed after the index has been swapped.
+ */
+final class ChunkedSheetFile {
+    /**
+     * Amount of rows in each block.
+     */
+    static final int BLOCK_ROWS = 256;
+
+    private static final byte[] MAGIC = "SHEEPIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    // smallest data file that is compacted
+    private static final long MIN_COMPACT = 1 << 20;
+
+    private final Path index;
+    private final int rows;
+    private final int columns;
+    private long generation;
+    private long[] offsets;
+    private int[] lengths;
+
+    private ChunkedSheetFile(Path index, int rows, int columns, long generation,
+                             long[] offsets, int[] lengths) {
+        this.index = index;
+        this.rows = rows;
+        this.columns = columns;
+        this.generation = generation;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Read the index of a chunked sheet.
+     *
+     * @param index The path of the index file.
+     * @return The chunked sheet.
+     * @throws IOException If the index cannot be read or is corrupt.
+     */
+    static ChunkedSheetFile open(Path index) throws IOException {
+        CRC32C checksum = new CRC32C();
+        try (DataInputStream data = new DataInputStream(
+                new CheckedInputStream(Files.newInputStream(index), checksum))) {
+            byte[] magic = new byte[MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a chunked sheet file");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported chunked sheet version " + version);
+            }
+            int rows = data.readInt();
+            int columns = data.readInt();
+            if (data.readInt() != BLOCK_ROWS || rows <= 0 || columns <= 0) {
+                throw new IOException("Corrupt chunked sheet index");
+            }
+            long generation = data.readLong();
+            int blocks = blocks(rows);
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            for (int block = 0; block < blocks; block++) {
+                offsets[block] = data.readLong();
+                lengths[block] = data.readInt();
+            }
+            long expected = checksum.getValue();
+            if (data.readLong() != expected) {
+                throw new IOException("Corrupt chunked sheet index, checksum mismatch");
+            }
+            return new ChunkedSheetFile(index, rows, columns, generation, offsets, lengths);
+        }
+    }
+
+    /**
+     * Save a sheet as a new chunked sheet, replacing any file at the given path.
+     * The data file of a chunked sheet replaced is removed once the index has been swapped.
+     *
+     * @param sheet The sheet to save.
+     * @param index The path of the index file.
+     * @return The chunked sheet.
+     * @throws IOException If the files cannot be written.
+     */
+    static ChunkedSheetFile create(Sheet sheet, Path index) throws IOException {
+        long previous = -1;
+        if (Files.exists(index)) {
+            try {
+                previous = open(index).generation;
+            } catch (IOException e) {
+                // not a chunked sheet, nothing to keep
+            }
+        }
+        long generation = previous + 1;
+        int blocks = blocks(sheet.getRows());
+        ChunkedSheetFile file = new ChunkedSheetFile(index, sheet.getRows(), sheet.getColumns(),
+                generation, new long[blocks], new int[blocks]);
+        file.rewrite(sheet, generation);
+        if (previous >= 0) {
+            Files.deleteIfExists(file.data(previous));
+        }
+        return file;
+    }
+
+    private static int blocks(int rows) {
+        return (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    }
+
+    /**
+     * The path of the index file.
+     */
+    Path path() {
+        return index;
+    }
+
+    /**
+     * Amount of rows of the saved sheet.
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * Amount of columns of the saved sheet.
+     */
+    int columns() {
+        return columns;
+    }
+
+    /**
+     * Amount of blocks of rows.
+     */
+    int blocks() {
+        return offsets.length;
+    }
+
+    /**
+     * The block that holds the given row.
+     */
+    static int block(int row) {
+        return row / BLOCK_ROWS;
+    }
+
+    private Path data(long generation) {
+        return index.resolveSibling(index.getFileName() + "." + generation + ".blocks");
+    }
+
+    /**
+     * Read the rows of a block.
+     *
+     * @param block The block to read.
+     * @return The rows of the block in the text format, separated by new lines.
+     * @throws IOException If the data file cannot be read.
+     */
+    String read(int block) throws IOException {
+        try (FileChannel channel = FileChannel.open(data(generation), StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate(lengths[block]);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offsets[block] + bytes.position()) < 0) {
+                    throw new IOException("Corrupt chunked sheet, block " + block + " is truncated");
+                }
+            }
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Save the changed blocks of a sheet, appending them to the data file.
+     *
+     * @param sheet   The sheet this file was created from or opened into.
+     * @param changed The blocks that changed since the last save.
+     * @throws IOException If the files cannot be written.
+     */
+    void save(Sheet sheet, BitSet changed) throws IOException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        Path data = data(generation);
+        long size = Files.size(data);
+        long live = Arrays.stream(lengths).asLongStream().sum();
+        if (size > MIN_COMPACT && size > 2 * live) {
+            long previous = generation;
+            rewrite(sheet, generation + 1);
+            Files.deleteIfExists(data(previous));
+            return;
+        }
+
+        long[] newOffsets = offsets.clone();
+        int[] newLengths = lengths.clone();
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+            long position = size;
+            for (int block = changed.nextSetBit(0); block >= 0; block = changed.nextSetBit(block + 1)) {
+                byte[] bytes = encode(sheet, block);
+                write(channel, position, bytes);
+                newOffsets[block] = position;
+                newLengths[block] = bytes.length;
+                position += bytes.length;
+            }
+            channel.force(false);
+        }
+        swapIndex(generation, newOffsets, newLengths);
+    }
+
+    private void rewrite(Sheet sheet, long generation) throws IOException {
+        long[] newOffsets = new long[offsets.length];
+        int[] newLengths = new int[lengths.length];
+        try (FileChannel channel = FileChannel.open(data(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (int block = 0; block < offsets.length; block++) {
+                byte[] bytes = encode(sheet, block);
+                write(channel, position, bytes);
+                newOffsets[block] = position;
+                newLengths[block] = bytes.length;
+                position += bytes.length;
+            }
+            channel.force(false);
+        }
+        swapIndex(generation, newOffsets, newLengths);
+    }
+
+    private byte[] encode(Sheet sheet, int block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        int first = block * BLOCK_ROWS;
+        sheet.encodeRows(writer, first, Math.min(first + BLOCK_ROWS, rows));
+        return bytes.toByteArray();
+    }
+
+    private static void write(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void swapIndex(long generation, long[] offsets, int[] lengths) throws IOException {
+        Path temporary = index.resolveSibling(index.getFileName() + ".tmp");
+        CRC32C checksum = new CRC32C();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream data = new DataOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), checksum));
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(rows);
+            data.writeInt(columns);
+            data.writeInt(BLOCK_ROWS);
+            data.writeLong(generation);
+            for (int block = 0; block < offsets.length; block++) {
+                data.writeLong(offsets[block]);
+                data.writeInt(lengths[block]);
+            }
+            data.writeLong(checksum.getValue());
+            data.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, index, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        this.generation = generation;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+}
@@ -0,0 +1,327 @@
+package sheep.sheets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A sheet file in the text format of {@link Sheet#encode()}, compressed in independent blocks of rows.
+ * <p>
+ * Each block of {@link #BLOCK_ROWS} rows is compressed with Deflate on its own, and an index
+ * at the start of the file gives the position of every block, so any row can be read by
+ * decompressing only its block. Blocks are compressed and decompressed in parallel.
+ * <pre>
+ * header  "SHEEPZIP", int version, int rows, int columns, int block rows, int blocks
+ * index   for every block: long offset, int compressed length, int length,
+ *         int CRC32C of the uncompressed block
+ * blocks  the rows of each block in the text format, separated by new lines, deflated
+ * </pre>
+ * An open file keeps the most recently used blocks decompressed, see {@link #row(int)}.
+ * Its channel is closed by {@link #close()}, or once the file is no longer reachable.
+ */
+final class CompressedSheetFile implements AutoCloseable {
+    /**
+     * Amount of rows in each block.
+     */
+    static final int BLOCK_ROWS = 1024;
+
+    private static final byte[] MAGIC = "SHEEPZIP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = MAGIC.length + 5 * Integer.BYTES;
+    private static final int ENTRY_BYTES = Long.BYTES + 3 * Integer.BYTES;
+    // Amount of blocks compressed at the same time when writing.
+    private static final int BLOCKS_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int CACHED_BLOCKS = 8;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FileChannel channel;
+    private final int rows;
+    private final int columns;
+    private final long[] offsets;
+    private final int[] compressedLengths;
+    private final int[] lengths;
+    private final int[] checksums;
+    private final Cleaner.Cleanable closer;
+    // guarded by this
+    private final Map<Integer, String[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    private CompressedSheetFile(FileChannel channel, int rows, int columns, long[] offsets,
+                                int[] compressedLengths, int[] lengths, int[] checksums) {
+        this.channel = channel;
+        this.rows = rows;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.compressedLengths = compressedLengths;
+        this.lengths = lengths;
+        this.checksums = checksums;
+        this.closer = CLEANER.register(this, closing(channel));
+    }
+
+    /**
+     * Closes the channel of a file, without referring to the file.
+     */
+    private static Runnable closing(FileChannel channel) {
+        return () -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static int blocks(int rows) {
+        return (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    }
+
+    /**
+     * Write a sheet as a compressed sheet file, replacing any existing file.
+     * Rows are rendered on the calling thread and compressed on the executor.
+     *
+     * @param sheet    The sheet to write.
+     * @param file     The path of the file to write.
+     * @param executor Executor to compress blocks on.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(Sheet sheet, Path file, Executor executor) throws IOException {
+        int rows = sheet.getRows();
+        int blocks = blocks(rows);
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + blocks * ENTRY_BYTES);
+        index.put(MAGIC).putInt(VERSION).putInt(rows).putInt(sheet.getColumns())
+                .putInt(BLOCK_ROWS).putInt(blocks);
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = index.capacity();
+            Deque<CompletableFuture<byte[]>> compressing = new ArrayDeque<>();
+            int written = 0;
+            for (int block = 0; block < blocks; block++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+                int first = block * BLOCK_ROWS;
+                sheet.encodeRows(writer, first, Math.min(first + BLOCK_ROWS, rows));
+                byte[] text = bytes.toByteArray();
+                CRC32C checksum = new CRC32C();
+                checksum.update(text);
+                index.putLong(0).putInt(0).putInt(text.length).putInt((int) checksum.getValue());
+                compressing.add(CompletableFuture.supplyAsync(() -> deflate(text), executor));
+                if (compressing.size() >= BLOCKS_IN_FLIGHT) {
+                    position = append(out, index, written++, position, compressing.poll().join());
+                }
+            }
+            while (!compressing.isEmpty()) {
+                position = append(out, index, written++, position, compressing.poll().join());
+            }
+            index.flip();
+            while (index.hasRemaining()) {
+                out.write(index, index.position());
+            }
+        }
+    }
+
+    private static long append(FileChannel out, ByteBuffer index, int block, long position,
+                               byte[] compressed) throws IOException {
+        int entry = HEADER_BYTES + block * ENTRY_BYTES;
+        index.putLong(entry, position).putInt(entry + Long.BYTES, compressed.length);
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + buffer.position());
+        }
+        return position + compressed.length;
+    }
+
+    private static byte[] deflate(byte[] text) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Open a compressed sheet file, reading its index.
+     *
+     * @param file The path of the file.
+     * @return The open file, to be closed by the caller.
+     * @throws IOException If the file cannot be read or is not a compressed sheet file.
+     */
+    static CompressedSheetFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a compressed sheet file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compressed sheet version " + version);
+            }
+            int rows = header.getInt();
+            int columns = header.getInt();
+            int blockRows = header.getInt();
+            int blocks = header.getInt();
+            if (rows <= 0 || columns <= 0 || blockRows != BLOCK_ROWS || blocks != blocks(rows)) {
+                throw new IOException("Corrupt compressed sheet header");
+            }
+
+            ByteBuffer index = read(channel, HEADER_BYTES, blocks * ENTRY_BYTES);
+            long[] offsets = new long[blocks];
+            int[] compressedLengths = new int[blocks];
+            int[] lengths = new int[blocks];
+            int[] checksums = new int[blocks];
+            for (int block = 0; block < blocks; block++) {
+                offsets[block] = index.getLong();
+                compressedLengths[block] = index.getInt();
+                lengths[block] = index.getInt();
+                checksums[block] = index.getInt();
+            }
+            return new CompressedSheetFile(channel, rows, columns, offsets,
+                    compressedLengths, lengths, checksums);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Corrupt compressed sheet, file is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Amount of rows of the sheet.
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * Amount of columns of the sheet.
+     */
+    int columns() {
+        return columns;
+    }
+
+    /**
+     * Amount of blocks of rows.
+     */
+    int blocks() {
+        return offsets.length;
+    }
+
+    /**
+     * Decompress the rows of a block. Safe to call from several threads at once.
+     *
+     * @param block The block to read.
+     * @return The rows of the block in the text format.
+     * @throws IOException If the block cannot be read or is corrupt.
+     */
+    String[] read(int block) throws IOException {
+        ByteBuffer compressed = read(channel, offsets[block], compressedLengths[block]);
+        byte[] text = new byte[lengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < text.length && !inflater.finished()) {
+                int inflated = inflater.inflate(text, length, text.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            CRC32C checksum = new CRC32C();
+            checksum.update(text, 0, length);
+            if (length != text.length || (int) checksum.getValue() != checksums[block]) {
+                throw new IOException("Corrupt compressed sheet, block " + block + " checksum mismatch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed sheet, block " + block, e);
+        } finally {
+            inflater.end();
+        }
+
+        String[] lines = new String(text, StandardCharsets.UTF_8).split("\n", -1);
+        int expected = Math.min(BLOCK_ROWS, rows - block * BLOCK_ROWS);
+        if (lines.length != expected) {
+            throw new IOException("Corrupt compressed sheet, block " + block
+                    + " has " + lines.length + " rows");
+        }
+        return lines;
+    }
+
+    /**
+     * Read a single row, keeping its block decompressed for the next rows.
+     * Safe to call from several threads at once, the blocks kept are shared.
+     *
+     * @param row The row to read.
+     * @return The row in the text format.
+     * @throws UncheckedIOException If the block of the row cannot be read or is corrupt.
+     */
+    synchronized String row(int row) {
+        int block = row / BLOCK_ROWS;
+        String[] lines = cache.get(block);
+        if (lines == null) {
+            try {
+                lines = read(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(block, lines);
+        }
+        return lines[row % BLOCK_ROWS];
+    }
+
+    /**
+     * Close the channel of the file, rows can no longer be read.
+     * Closing a file more than once has no effect.
+     *
+     * @throws UncheckedIOException If the channel fails to close.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            cache.clear();
+        }
+        closer.clean();
+    }
+}
@@ -0,0 +1,232 @@
+package sheep.sheets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The dependencies between the cells of a sheet, by cell index.
+ * <p>
+ * Both directions of the graph are stored as compressed sparse rows:
+ * one {@code int[]} of offsets with an entry per cell, and one {@code int[]}
+ * holding the neighbours of every cell back to back. A cell without
+ * dependencies or usages only costs its offsets.
+ * <p>
+ * Edits do not rewrite the compressed rows. Instead, the new row of an edited
+ * cell is kept in a small overflow area that takes precedence over its compressed row.
+ * Once the overflow area outgrows the compressed rows,
+ * it is folded back into the compressed rows by {@link #compact()}.
+ */
+final class DependencyGraph {
+    private static final int[] NONE = new int[0];
+    // smallest amount of overflow entries before compacting
+    private static final int MIN_OVERFLOW = 4096;
+
+    private final int cells;
+    private int[] dependencyOffsets;
+    private int[] dependencyTargets;
+    private int[] usageOffsets;
+    private int[] usageTargets;
+    private final Map<Integer, int[]> dependencyOverflow = new HashMap<>();
+    private final Map<Integer, int[]> usageOverflow = new HashMap<>();
+    private long overflowEntries;
+
+    /**
+     * Create a graph without any dependencies.
+     *
+     * @param cells Amount of cells in the sheet.
+     */
+    DependencyGraph(int cells) {
+        this.cells = cells;
+        this.dependencyOffsets = new int[cells + 1];
+        this.dependencyTargets = NONE;
+        this.usageOffsets = new int[cells + 1];
+        this.usageTargets = NONE;
+    }
+
+    /**
+     * Replace the whole graph with the given dependencies, building
+     * the compressed rows directly rather than through the overflow area.
+     *
+     * @param dependencies The indexes of the cells each cell depends on,
+     *                     asked once for each cell in index order.
+     */
+    void rebuild(IntFunction<int[]> dependencies) {
+        dependencyOverflow.clear();
+        usageOverflow.clear();
+        overflowEntries = 0;
+        build(dependencies);
+    }
+
+    /**
+     * Fold the overflow area back into the compressed rows.
+     */
+    void compact() {
+        if (dependencyOverflow.isEmpty()) {
+            return;
+        }
+        int[] edited = dependencyOverflow.keySet().stream()
+                .mapToInt(Integer::intValue).sorted().toArray();
+        int[][] rows = new int[edited.length][];
+        for (int i = 0; i < edited.length; i++) {
+            rows[i] = dependencyOverflow.get(edited[i]);
+        }
+        int[] offsets = dependencyOffsets;
+        int[] targets = dependencyTargets;
+        int[] next = {0};
+        rebuild(cell -> {
+            if (next[0] < edited.length && edited[next[0]] == cell) {
+                return rows[next[0]++];
+            }
+            return row(targets, offsets, cell);
+        });
+    }
+
+    private void build(IntFunction<int[]> dependencies) {
+        int[] offsets = new int[cells + 1];
+        int[] targets = new int[Math.max(16, dependencyTargets.length)];
+        int total = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            int[] row = dependencies.apply(cell);
+            if (total + row.length > targets.length) {
+                targets = Arrays.copyOf(targets, Math.max(total + row.length, targets.length * 2));
+            }
+            System.arraycopy(row, 0, targets, total, row.length);
+            total += row.length;
+            offsets[cell + 1] = total;
+        }
+        dependencyOffsets = offsets;
+        dependencyTargets = Arrays.copyOf(targets, total);
+
+        // usages are the transpose, counting sort by target
+        int[] usageCounts = new int[cells + 1];
+        for (int i = 0; i < total; i++) {
+            usageCounts[targets[i] + 1]++;
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            usageCounts[cell + 1] += usageCounts[cell];
+        }
+        int[] usages = new int[total];
+        int[] next = Arrays.copyOf(usageCounts, cells);
+        for (int cell = 0; cell < cells; cell++) {
+            for (int i = offsets[cell]; i < offsets[cell + 1]; i++) {
+                usages[next[targets[i]]++] = cell;
+            }
+        }
+        usageOffsets = usageCounts;
+        usageTargets = usages;
+    }
+
+    private static int[] row(int[] targets, int[] offsets, int cell) {
+        int from = offsets[cell];
+        int to = offsets[cell + 1];
+        return from == to ? NONE : Arrays.copyOfRange(targets, from, to);
+    }
+
+    /**
+     * The cells that the given cell depends on.
+     *
+     * @return The indexes of the dependencies, must not be modified.
+     */
+    int[] dependencies(int cell) {
+        int[] row = dependencyOverflow.get(cell);
+        return row != null ? row : row(dependencyTargets, dependencyOffsets, cell);
+    }
+
+    /**
+     * Amount of cells that directly use the given cell.
+     */
+    int usageCount(int cell) {
+        if (overflowEntries > 0) {
+            int[] row = usageOverflow.get(cell);
+            if (row != null) {
+                return row.length;
+            }
+        }
+        return usageOffsets[cell + 1] - usageOffsets[cell];
+    }
+
+    /**
+     * The i-th cell that directly uses the given cell.
+     *
+     * @requires 0 &lt;= i &lt; usageCount(cell)
+     */
+    int usage(int cell, int i) {
+        if (overflowEntries > 0) {
+            int[] row = usageOverflow.get(cell);
+            if (row != null) {
+                return row[i];
+            }
+        }
+        return usageTargets[usageOffsets[cell] + i];
+    }
+
+    /**
+     * Replace the dependencies of a cell.
+     *
+     * @param cell         The index of the edited cell.
+     * @param dependencies The indexes of the cells its new formula depends on,
+     *                     without duplicates. The array is kept, not copied.
+     */
+    void setDependencies(int cell, int[] dependencies) {
+        int[] previous = dependencies(cell);
+        if (Arrays.equals(previous, dependencies)) {
+            return;
+        }
+        for (int target : previous) {
+            if (!contains(dependencies, target)) {
+                setUsages(target, remove(usages(target), cell));
+            }
+        }
+        for (int target : dependencies) {
+            if (!contains(previous, target)) {
+                setUsages(target, add(usages(target), cell));
+            }
+        }
+        dependencyOverflow.put(cell, dependencies);
+        overflowEntries += dependencies.length;
+
+        // compact once the overflow outgrows the compressed rows, so bulk edits
+        // such as filling a range only compact a logarithmic amount of times
+        if (overflowEntries > Math.max(MIN_OVERFLOW, dependencyTargets.length)) {
+            compact();
+        }
+    }
+
+    private int[] usages(int cell) {
+        int[] row = usageOverflow.get(cell);
+        return row != null ? row : row(usageTargets, usageOffsets, cell);
+    }
+
+    private void setUsages(int cell, int[] usages) {
+        usageOverflow.put(cell, usages);
+        overflowEntries += usages.length + 1;
+    }
+
+    private static boolean contains(int[] row, int value) {
+        for (int element : row) {
+            if (element == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] add(int[] row, int value) {
+        int[] result = Arrays.copyOf(row, row.length + 1);
+        result[row.length] = value;
+        return result;
+    }
+
+    private static int[] remove(int[] row, int value) {
+        int[] result = new int[row.length - 1];
+        int size = 0;
+        for (int element : row) {
+            if (element != value) {
+                result[size++] = element;
+            }
+        }
+        return result;
+    }
+}
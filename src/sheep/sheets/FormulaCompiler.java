@@ -0,0 +1,285 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+import sheep.expression.basic.Constant;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Evaluates formulas through compiled forms instead of their {@link Expression} trees.
+ * <p>
+ * Interpreting a formula walks its {@link Expression} tree and creates an
+ * argument array and a new {@link Constant} at each level.
+ * Instead, the first time a formula is evaluated it is lowered into a
+ * {@link Program} which is run on a reused stack without allocating.
+ * <p>
+ * Optionally, once a formula has been evaluated more than a threshold amount
+ * of times, its program is further compiled in the background into a method
+ * handle chain of type {@code (CellReader)long}.
+ * <p>
+ * Only formulas built from numbers, cell references, the arithmetic operators
+ * and MEAN or MEDIAN are compiled. Other formulas, and compiled formulas
+ * that read a cell which does not hold a number, are left to the interpreter.
+ * Template instances (see {@link FormulaTemplate}) share one compiled
+ * form for their whole template.
+ * <p>
+ * Programs are lowered from the expression tree of a formula,
+ * so they follow the rules of whichever parser built the formula.
+ * <p>
+ * A compiler is not thread safe. Each sheet has its own compiler, which is only
+ * used by the single writer of the sheet while it evaluates formulas, so the
+ * compiled forms, the shifted reader and the stack are never shared between threads.
+ * Only the method handles are published from the background compilation thread.
+ */
+final class FormulaCompiler {
+    private static final MethodType FORMULA = MethodType.methodType(long.class, CellReader.class);
+    private static final MethodHandle READ;
+    private static final MethodHandle PLUS;
+    private static final MethodHandle MINUS;
+    private static final MethodHandle TIMES;
+    private static final MethodHandle DIVIDE;
+    private static final MethodHandle ARRAY;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType binary = MethodType.methodType(long.class, long.class, long.class);
+        try {
+            READ = lookup.findVirtual(CellReader.class, "number",
+                    MethodType.methodType(long.class, int.class, int.class));
+            PLUS = lookup.findStatic(FormulaCompiler.class, "plus", binary);
+            MINUS = lookup.findStatic(FormulaCompiler.class, "minus", binary);
+            TIMES = lookup.findStatic(FormulaCompiler.class, "times", binary);
+            DIVIDE = lookup.findStatic(FormulaCompiler.class, "divide", binary);
+            ARRAY = lookup.findStatic(FormulaCompiler.class, "array",
+                    MethodType.methodType(long.class, int.class, long[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheep-formula-compiler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final int threshold;
+    private final Executor executor;
+    // only used by the writer of the sheet
+    // keyed by formula, or by template for template instances
+    private final Map<Object, Compiled> formulas = new WeakHashMap<>();
+    private final ShiftedReader reader = new ShiftedReader();
+    private long[] stack = new long[16];
+
+    /**
+     * Create a compiler that compiles hot formulas on a low priority
+     * background thread shared by all sheets.
+     *
+     * @param threshold Amount of evaluations after which a formula is compiled,
+     *                  negative to never compile to method handles.
+     */
+    FormulaCompiler(int threshold) {
+        this(threshold, BACKGROUND);
+    }
+
+    /**
+     * Create a compiler that compiles hot formulas on the given executor.
+     *
+     * @param threshold Amount of evaluations after which a formula is compiled,
+     *                  negative to never compile to method handles.
+     * @param executor  Executor to run compilations on.
+     */
+    FormulaCompiler(int threshold, Executor executor) {
+        this.threshold = threshold;
+        this.executor = executor;
+    }
+
+    /**
+     * Evaluation statistics and compiled forms of a single formula.
+     */
+    private static final class Compiled {
+        private final Program program;
+        private int evaluations;
+        private boolean queued;
+        // set by the background compilation thread
+        private volatile MethodHandle handle;
+
+        private Compiled(Program program) {
+            this.program = program;
+        }
+    }
+
+    /**
+     * Reads the cells of a sheet moved by the offset of a template instance,
+     * reused between evaluations.
+     */
+    private static final class ShiftedReader implements CellReader {
+        private CellReader cells;
+        private int rowShift;
+        private int columnShift;
+
+        @Override
+        public long number(int row, int column) {
+            return cells.number(row + rowShift, column + columnShift);
+        }
+    }
+
+    /**
+     * Evaluate a formula with its compiled form, if it has one,
+     * and store the result in the value column.
+     * <p>
+     * Formulas are lowered into a program on their first evaluation.
+     * Evaluations are counted, and a formula is queued for compilation into
+     * a method handle once it has been evaluated more than the threshold
+     * amount of times.
+     *
+     * @param formula The formula to evaluate.
+     * @param values  The values of the sheet, read by the formula.
+     * @param index   The index of the cell to store the result in.
+     * @return False if the formula must be interpreted instead.
+     */
+    boolean evaluate(Expression formula, CellValues values, int index) {
+        if (formula instanceof Constant constant) {
+            // e.g. numbers loaded from a file, nothing to compile
+            values.setNumber(index, constant.getValue());
+            return true;
+        }
+        Object key = formula;
+        Expression source = formula;
+        CellReader cells = values;
+        if (formula instanceof FormulaTemplate.Instance instance) {
+            key = instance.template();
+            source = instance.template().source();
+            if (instance.rowShift() != 0 || instance.columnShift() != 0) {
+                reader.cells = values;
+                reader.rowShift = instance.rowShift();
+                reader.columnShift = instance.columnShift();
+                cells = reader;
+            }
+        }
+
+        Compiled compiled = formulas.get(key);
+        if (compiled == null) {
+            compiled = new Compiled(Program.lower(source).orElse(null));
+            formulas.put(key, compiled);
+        }
+        Program program = compiled.program;
+        if (program == null) {
+            return false;
+        }
+
+        try {
+            long result;
+            MethodHandle handle = compiled.handle;
+            if (handle != null) {
+                result = (long) handle.invokeExact(cells);
+            } else {
+                if (threshold >= 0 && ++compiled.evaluations > threshold && !compiled.queued) {
+                    compiled.queued = true;
+                    Compiled hot = compiled;
+                    executor.execute(() -> hot.handle = compile(program));
+                }
+                if (stack.length < program.frameSize()) {
+                    stack = new long[program.frameSize()];
+                }
+                result = program.run(cells, stack);
+            }
+            values.setNumber(index, result);
+            return true;
+        } catch (RuntimeException e) {
+            // not a number, or e.g. division by zero, the interpreter decides
+            return false;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compile a formula into a method handle of type {@code (CellReader)long}.
+     *
+     * @param formula The formula to compile.
+     * @return The compiled formula, or empty if it cannot be compiled.
+     */
+    static Optional<MethodHandle> compile(Expression formula) {
+        return Program.lower(formula).map(FormulaCompiler::compile);
+    }
+
+    /**
+     * Compile a program into a method handle of type {@code (CellReader)long}.
+     *
+     * @param program The program to compile.
+     * @return The compiled program.
+     */
+    static MethodHandle compile(Program program) {
+        return program.accept(new Program.Visitor<>() {
+            @Override
+            public MethodHandle constant(long value) {
+                return MethodHandles.dropArguments(
+                        MethodHandles.constant(long.class, value), 0, CellReader.class);
+            }
+
+            @Override
+            public MethodHandle load(int row, int column) {
+                return MethodHandles.insertArguments(READ, 1, row, column);
+            }
+
+            @Override
+            public MethodHandle operator(int op, List<MethodHandle> arguments) {
+                return FormulaCompiler.operator(op, arguments.toArray(new MethodHandle[0]));
+            }
+        });
+    }
+
+    private static MethodHandle operator(int op, MethodHandle[] arguments) {
+        MethodHandle binary = switch (op) {
+            case Program.PLUS -> PLUS;
+            case Program.MINUS -> MINUS;
+            case Program.TIMES -> TIMES;
+            case Program.DIVIDE -> DIVIDE;
+            default -> null;
+        };
+        if (binary != null) {
+            // left fold, a - b - c is (a - b) - c
+            MethodHandle result = arguments[0];
+            for (int i = 1; i < arguments.length; i++) {
+                MethodHandle combined = MethodHandles.filterArguments(binary, 0, result, arguments[i]);
+                result = MethodHandles.permuteArguments(combined, FORMULA, 0, 0);
+            }
+            return result;
+        }
+
+        MethodHandle array = MethodHandles.insertArguments(ARRAY, 0, op);
+        MethodHandle collected = MethodHandles.filterArguments(
+                array.asCollector(long[].class, arguments.length), 0, arguments);
+        return MethodHandles.permuteArguments(collected, FORMULA, new int[arguments.length]);
+    }
+
+    private static long plus(long left, long right) {
+        return left + right;
+    }
+
+    private static long minus(long left, long right) {
+        return left - right;
+    }
+
+    private static long times(long left, long right) {
+        return left * right;
+    }
+
+    private static long divide(long left, long right) {
+        return left / right;
+    }
+
+    private static long array(int op, long[] arguments) {
+        return Program.perform(op, arguments, 0, arguments.length);
+    }
+}
@@ -0,0 +1,167 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Dictionary of the formulas stored in a sheet.
+ * <p>
+ * Cells refer to their formula by an integer handle (see {@link CellStore#formula(int)}),
+ * so a formula shared by many cells, such as the default expression or a
+ * loaded formula, is only stored once. Handle 0 is always the default expression.
+ * Handles are reference counted and reused once no cell refers to them.
+ * <p>
+ * Formulas are shared by their type and rendering, see {@link #key(Expression)},
+ * so equal formulas parsed separately have the same handle. Every instance of a formula template (see {@link FormulaTemplate})
+ * shares the handle of its template, whichever cell it is placed in.
+ * <p>
+ * The dependencies of each formula are resolved into cell indexes once,
+ * when the formula is added, rather than on every edit of a cell.
+ * The dependencies of a template are resolved relative to the cell holding it.
+ */
+final class FormulaTable {
+    private final List<Expression> formulas = new ArrayList<>();
+    private final Map<Object, Integer> handles = new HashMap<>();
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private final Function<Expression, int[]> resolver;
+    private Object[] keys = new Object[16];
+    private int[] references = new int[16];
+    private int[][] dependencies = new int[16][];
+    private boolean[] relative = new boolean[16];
+
+    /**
+     * Identifies a formula that is not a template instance.
+     */
+    private record Key(Class<?> type, String rendered) {
+    }
+
+    /**
+     * Create a table holding only the default expression.
+     *
+     * @param defaultExpression The formula of empty cells, with handle 0.
+     * @param resolver          Resolves the dependencies of a formula into cell indexes,
+     *                          or into index offsets for template instances,
+     *                          see {@link FormulaTemplate#offsets(int)}.
+     */
+    FormulaTable(Expression defaultExpression, Function<Expression, int[]> resolver) {
+        this.resolver = resolver;
+        formulas.add(defaultExpression);
+        keys[0] = key(defaultExpression);
+        handles.put(keys[0], 0);
+        dependencies[0] = resolver.apply(defaultExpression);
+    }
+
+    /**
+     * The key formulas are shared by: the template of a template instance,
+     * otherwise the type and rendering of the formula.
+     *
+     * @param formula A formula stored in a cell.
+     * @return A key equal to the key of every formula sharing its handle.
+     */
+    static Object key(Expression formula) {
+        if (formula instanceof FormulaTemplate.Instance instance) {
+            return instance.template();
+        }
+        return new Key(formula.getClass(), formula.render());
+    }
+
+    /**
+     * The formula with the given handle.
+     * For a template, this is an instance placed in one of the cells holding it.
+     */
+    Expression get(int handle) {
+        return formulas.get(handle);
+    }
+
+    /**
+     * The indexes of the cells that the formula with the given handle depends on,
+     * when it is stored in the given cell.
+     *
+     * @param handle The handle of the formula.
+     * @param index  The index of the cell holding the formula.
+     * @return The resolved dependencies, must not be modified.
+     */
+    int[] dependencies(int handle, int index) {
+        if (!relative[handle]) {
+            return dependencies[handle];
+        }
+        int[] offsets = dependencies[handle];
+        int[] indexes = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            indexes[i] = index + offsets[i];
+        }
+        return indexes;
+    }
+
+    /**
+     * Add a reference to a formula, adding the formula to the table if needed.
+     *
+     * @param formula The formula stored in a cell.
+     * @return The handle of the formula.
+     */
+    int acquire(Expression formula) {
+        Object key = key(formula);
+        Integer handle = handles.get(key);
+        if (handle == null) {
+            if (free.isEmpty()) {
+                handle = formulas.size();
+                formulas.add(formula);
+            } else {
+                handle = free.pop();
+                formulas.set(handle, formula);
+            }
+            handles.put(key, handle);
+            if (handle >= references.length) {
+                int length = references.length * 2;
+                keys = Arrays.copyOf(keys, length);
+                references = Arrays.copyOf(references, length);
+                dependencies = Arrays.copyOf(dependencies, length);
+                relative = Arrays.copyOf(relative, length);
+            }
+            keys[handle] = key;
+            dependencies[handle] = resolver.apply(formula);
+            relative[handle] = formula instanceof FormulaTemplate.Instance;
+        }
+        references[handle]++;
+        return handle;
+    }
+
+    /**
+     * Add another reference to a formula already in the table,
+     * e.g. when it is copied into another cell.
+     *
+     * @param handle The handle of the formula.
+     * @return The handle of the formula.
+     * @requires the handle refers to a formula
+     */
+    int retain(int handle) {
+        references[handle]++;
+        return handle;
+    }
+
+    /**
+     * Remove a reference to a formula, the handle may be reused once
+     * the formula is no longer referenced.
+     *
+     * @param handle The handle of the formula no longer stored in a cell.
+     */
+    void release(int handle) {
+        if (handle == 0 || --references[handle] > 0) {
+            return;
+        }
+        handles.remove(keys[handle]);
+        formulas.set(handle, null);
+        keys[handle] = null;
+        dependencies[handle] = null;
+        relative[handle] = false;
+        free.push(handle);
+    }
+}
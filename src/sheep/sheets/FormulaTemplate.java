@@ -0,0 +1,454 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+import sheep.expression.TypeError;
+import sheep.expression.arithmetic.Arithmetic;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A formula shape shared by many cells of a sheet.
+ * <p>
+ * A template stores a single parsed {@link Expression} together with the
+ * cell it was written in (its origin). Every cell reference inside the
+ * expression is remembered relative to that origin, in the same way as the
+ * R1C1 notation of other spreadsheets, e.g. {@code A1 * 2} written in B1 is
+ * the template {@code R[0]C[-1] * 2}.
+ * <p>
+ * Cells that share a template share a single formula handle (see {@link FormulaTable}),
+ * the instance of a cell only holds the template and its location,
+ * see {@link #instantiate(int, int)}. Rendering and evaluating an instance
+ * shifts the references of the template by the instance offset, so the
+ * expression is never re-parsed or copied.
+ */
+final class FormulaTemplate {
+    private final Expression source;
+    private final int originRow;
+    private final int originColumn;
+
+    // render() of the source split around cell references,
+    // literals.length == occurrences.length + 1
+    private final String[] literals;
+    // the reference written at each occurrence, an index in the offset arrays
+    private final int[] occurrences;
+    // offsets of each distinct reference from the origin
+    private final int[] rowOffsets;
+    private final int[] columnOffsets;
+
+    // dependencies of the source that are not cell references, e.g. built-ins
+    private final Set<String> identifiers = new HashSet<>();
+    // source reference name to its index in the offset arrays
+    private final Map<String, Integer> references = new HashMap<>();
+
+    /**
+     * Create a template from an expression written at the given origin.
+     * <p>
+     * The cell references are found in the expression tree, each node
+     * is located in the rendering of the source after the nodes before it.
+     *
+     * @param source       The expression to share.
+     * @param originRow    The row the expression was written in.
+     * @param originColumn The column the expression was written in.
+     * @throws IllegalArgumentException If the cell references of the source
+     *                                  cannot be located in its rendering.
+     */
+    FormulaTemplate(Expression source, int originRow, int originColumn) {
+        this.source = source;
+        this.originRow = originRow;
+        this.originColumn = originColumn;
+
+        Placement placement = new Placement(source.render());
+        placement.place(source, 0);
+        placement.literals.add(placement.rendered.substring(placement.cursor));
+
+        this.literals = placement.literals.toArray(new String[0]);
+        this.occurrences = placement.occurrences.stream().mapToInt(Integer::intValue).toArray();
+        this.rowOffsets = new int[placement.locations.size()];
+        this.columnOffsets = new int[placement.locations.size()];
+        for (int r = 0; r < rowOffsets.length; r++) {
+            rowOffsets[r] = placement.locations.get(r).getRow() - originRow;
+            columnOffsets[r] = placement.locations.get(r).getColumn() - originColumn;
+        }
+        references.putAll(placement.references);
+        for (String dependency : source.dependencies()) {
+            if (CellLocation.maybeReference(dependency).isEmpty()) {
+                identifiers.add(dependency);
+            }
+        }
+    }
+
+    /**
+     * Splits the rendering of a source expression around its cell references.
+     */
+    private static final class Placement {
+        private final String rendered;
+        private final List<String> literals = new ArrayList<>();
+        private final List<Integer> occurrences = new ArrayList<>();
+        private final List<CellLocation> locations = new ArrayList<>();
+        private final Map<String, Integer> references = new HashMap<>();
+        // end of the last reference found
+        private int cursor;
+
+        private Placement(String rendered) {
+            this.rendered = rendered;
+        }
+
+        /**
+         * Locate a node of the source, and the references inside it,
+         * in the rendering of the source.
+         *
+         * @param node The node to locate.
+         * @param from The position of the rendering to search from.
+         * @return The position after the rendering of the node.
+         */
+        private int place(Expression node, int from) {
+            String text = node.render();
+            int start = rendered.indexOf(text, from);
+            if (start < 0) {
+                throw new IllegalArgumentException("Unable to locate " + text + " in " + rendered);
+            }
+            int end = start + text.length();
+
+            // a reference depends on exactly the cell it renders
+            Set<String> dependencies = node.dependencies();
+            Optional<CellLocation> location = dependencies.size() == 1 && dependencies.contains(text)
+                    ? CellLocation.maybeReference(text) : Optional.empty();
+            if (location.isPresent()) {
+                literals.add(rendered.substring(cursor, start));
+                Integer index = references.get(text);
+                if (index == null) {
+                    index = locations.size();
+                    locations.add(location.get());
+                    references.put(text, index);
+                }
+                occurrences.add(index);
+                cursor = end;
+                return end;
+            }
+
+            if (node instanceof Arithmetic arithmetic) {
+                int position = start;
+                for (Expression argument : arithmetic.getArguments()) {
+                    position = place(argument, position);
+                }
+                return end;
+            }
+            for (String dependency : dependencies) {
+                if (CellLocation.maybeReference(dependency).isPresent()) {
+                    throw new IllegalArgumentException("Unable to locate the references of " + text);
+                }
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Create the expression for this template placed at the given cell.
+     * Instances only hold a pointer to this template and their location.
+     *
+     * @param row    The row of the cell the instance is stored in.
+     * @param column The column of the cell the instance is stored in.
+     * @return An expression equivalent to the template moved to the cell.
+     */
+    Expression instantiate(int row, int column) {
+        return new Instance(this, row, column);
+    }
+
+    /**
+     * Whether every reference of the template stays within a sheet of the
+     * given size when the template is placed at every cell of the given range.
+     *
+     * @param firstRow     The first row the template would be placed in.
+     * @param firstColumn  The first column the template would be placed in.
+     * @param lastRow      The last row the template would be placed in (inclusive).
+     * @param lastColumn   The last column the template would be placed in (inclusive).
+     * @param rows         Amount of rows of the sheet.
+     * @param columns      Amount of columns of the sheet.
+     * @return True if every shifted reference is inside the sheet.
+     */
+    boolean fits(int firstRow, int firstColumn, int lastRow, int lastColumn, int rows, int columns) {
+        for (int r = 0; r < rowOffsets.length; r++) {
+            if (firstRow + rowOffsets[r] < 0 || lastRow + rowOffsets[r] >= rows
+                    || firstColumn + columnOffsets[r] < 0 || lastColumn + columnOffsets[r] >= columns) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The distinct amounts of rows between the cells referred to by an instance
+     * and the instance, e.g. to load the rows it depends on.
+     *
+     * @return The row offsets of the references, without duplicates.
+     */
+    int[] rowOffsets() {
+        return Arrays.stream(rowOffsets).distinct().toArray();
+    }
+
+    /**
+     * The distinct differences between the index of the cells referred to by
+     * an instance and the index of the instance, in a sheet of the given width.
+     * They are the same for every instance, which depends on the cells
+     * at its own index plus each offset.
+     *
+     * @param columns Amount of columns of the sheet.
+     * @return The index offsets of the references, without duplicates.
+     * @requires the template fits the sheet at every instance
+     */
+    int[] offsets(int columns) {
+        int[] offsets = new int[rowOffsets.length];
+        for (int r = 0; r < rowOffsets.length; r++) {
+            offsets[r] = rowOffsets[r] * columns + columnOffsets[r];
+        }
+        return Arrays.stream(offsets).distinct().toArray();
+    }
+
+    /**
+     * Render the template using relative R1C1 style references,
+     * e.g. {@code R[-1]C[0] * 2}.
+     *
+     * @return The relative rendering of this template.
+     */
+    String renderRelative() {
+        StringBuilder builder = new StringBuilder(literals[0]);
+        for (int o = 0; o < occurrences.length; o++) {
+            builder.append("R[").append(rowOffsets[occurrences[o]]).append("]C[")
+                    .append(columnOffsets[occurrences[o]]).append("]")
+                    .append(literals[o + 1]);
+        }
+        return builder.toString();
+    }
+
+    private String render(int row, int column) {
+        StringBuilder builder = new StringBuilder(literals[0]);
+        for (int o = 0; o < occurrences.length; o++) {
+            builder.append(name(row + rowOffsets[occurrences[o]], column + columnOffsets[occurrences[o]]))
+                    .append(literals[o + 1]);
+        }
+        return builder.toString();
+    }
+
+    private Set<String> dependencies(int row, int column) {
+        Set<String> dependencies = new HashSet<>(identifiers);
+        for (int r = 0; r < rowOffsets.length; r++) {
+            dependencies.add(name(row + rowOffsets[r], column + columnOffsets[r]));
+        }
+        return dependencies;
+    }
+
+    private static String name(int row, int column) {
+        return new CellLocation(row, column).toString();
+    }
+
+    /**
+     * The expression this template was created from.
+     *
+     * @return The expression written at the origin of the template.
+     */
+    Expression source() {
+        return source;
+    }
+
+    /**
+     * The row the source of this template was written in.
+     */
+    int originRow() {
+        return originRow;
+    }
+
+    /**
+     * The column the source of this template was written in.
+     */
+    int originColumn() {
+        return originColumn;
+    }
+
+    /**
+     * A cell holding a template, only storing its location.
+     */
+    static final class Instance extends Expression {
+        private final FormulaTemplate template;
+        private final int row;
+        private final int column;
+
+        private Instance(FormulaTemplate template, int row, int column) {
+            this.template = template;
+            this.row = row;
+            this.column = column;
+        }
+
+        /**
+         * The template this cell was filled from.
+         */
+        FormulaTemplate template() {
+            return template;
+        }
+
+        /**
+         * The row of the cell this instance is placed in.
+         */
+        int row() {
+            return row;
+        }
+
+        /**
+         * The column of the cell this instance is placed in.
+         */
+        int column() {
+            return column;
+        }
+
+        /**
+         * Amount of rows between the origin of the template and this cell.
+         */
+        int rowShift() {
+            return row - template.originRow;
+        }
+
+        /**
+         * Amount of columns between the origin of the template and this cell.
+         */
+        int columnShift() {
+            return column - template.originColumn;
+        }
+
+        @Override
+        public Set<String> dependencies() {
+            return template.dependencies(row, column);
+        }
+
+        @Override
+        public Expression value(Map<String, Expression> state) throws TypeError {
+            if (row == template.originRow && column == template.originColumn) {
+                return template.source.value(state);
+            }
+            return template.source.value(new ShiftedState(template, state,
+                    row - template.originRow, column - template.originColumn));
+        }
+
+        @Override
+        public String render() {
+            return template.render(row, column);
+        }
+
+        @Override
+        public String toString() {
+            return "Template(" + template.renderRelative() + ")";
+        }
+    }
+
+    /**
+     * Find the template an expression was created from.
+     *
+     * @param expression An expression stored in a sheet.
+     * @return The template of the expression, if it is a template instance.
+     */
+    static Optional<FormulaTemplate> of(Expression expression) {
+        if (expression instanceof Instance instance) {
+            return Optional.of(instance.template);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * A sheet state which can look up cells by their row and column,
+     * without naming them.
+     */
+    interface CellState {
+        /**
+         * The value of the given cell.
+         *
+         * @return The value of the cell, or null if it is outside the sheet.
+         */
+        Expression cell(int row, int column);
+    }
+
+    /**
+     * Read-only view of a sheet state which translates the references
+     * of the template source into the references of a shifted instance.
+     * <p>
+     * Looking up a reference does not allocate when the state is a {@link CellState},
+     * the shifted cell is read by its row and column rather than by its name.
+     */
+    private static final class ShiftedState extends AbstractMap<String, Expression> {
+        private final FormulaTemplate template;
+        private final Map<String, Expression> state;
+        private final int rowShift;
+        private final int columnShift;
+
+        private ShiftedState(FormulaTemplate template, Map<String, Expression> state,
+                             int rowShift, int columnShift) {
+            this.template = template;
+            this.state = state;
+            this.rowShift = rowShift;
+            this.columnShift = columnShift;
+        }
+
+        private int row(int reference) {
+            return template.originRow + template.rowOffsets[reference] + rowShift;
+        }
+
+        private int column(int reference) {
+            return template.originColumn + template.columnOffsets[reference] + columnShift;
+        }
+
+        private String translate(int reference) {
+            return name(row(reference), column(reference));
+        }
+
+        @Override
+        public Expression get(Object key) {
+            Integer reference = template.references.get(key);
+            if (reference == null) {
+                return state.get(key);
+            }
+            if (state instanceof CellState cells) {
+                return cells.cell(row(reference), column(reference));
+            }
+            return state.get(translate(reference));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer reference = template.references.get(key);
+            if (reference == null) {
+                return state.containsKey(key);
+            }
+            if (state instanceof CellState cells) {
+                return cells.cell(row(reference), column(reference)) != null;
+            }
+            return state.containsKey(translate(reference));
+        }
+
+        /**
+         * Every symbol of the state, with the references of the template source
+         * bound to the values of the shifted cells, e.g. for built-ins iterating the state.
+         */
+        @Override
+        public Set<Entry<String, Expression>> entrySet() {
+            Map<String, Expression> shifted = new HashMap<>();
+            for (Entry<String, Expression> entry : state.entrySet()) {
+                if (!template.references.containsKey(entry.getKey())) {
+                    shifted.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Entry<String, Integer> reference : template.references.entrySet()) {
+                String target = translate(reference.getValue());
+                if (state.containsKey(target)) {
+                    shifted.put(reference.getKey(), state.get(target));
+                }
+            }
+            return Collections.unmodifiableMap(shifted).entrySet();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package sheep.sheets;
+
+/**
+ * Cell storage in primitive arrays on the Java heap.
+ * Takes 13 bytes per cell.
+ */
+final class HeapCellStore implements CellStore {
+    private final long[] numbers;
+    private final int[] formulas;
+    private final byte[] kinds;
+
+    /**
+     * Create a store of empty cells.
+     *
+     * @param size Amount of cells to store.
+     */
+    HeapCellStore(int size) {
+        this.numbers = new long[size];
+        this.formulas = new int[size];
+        this.kinds = new byte[size];
+    }
+
+    @Override
+    public int size() {
+        return kinds.length;
+    }
+
+    @Override
+    public byte kind(int index) {
+        return kinds[index];
+    }
+
+    @Override
+    public void setKind(int index, byte kind) {
+        kinds[index] = kind;
+    }
+
+    @Override
+    public long number(int index) {
+        return numbers[index];
+    }
+
+    @Override
+    public void setNumber(int index, long number) {
+        numbers[index] = number;
+    }
+
+    @Override
+    public int formula(int index) {
+        return formulas[index];
+    }
+
+    @Override
+    public void setFormula(int index, int handle) {
+        formulas[index] = handle;
+    }
+}
@@ -0,0 +1,24 @@
+package sheep.sheets;
+
+/**
+ * When the edit journal of a sheet is forced to disk, see {@link SheetBuilder#journal(JournalSync)}.
+ * <p>
+ * Journal records are always written in groups by a background thread,
+ * an update never waits for the disk. The policy trades how many of the
+ * latest updates a crash of the machine may lose for the cost of forcing.
+ */
+public enum JournalSync {
+    /**
+     * Force every group of records to disk as soon as it is written.
+     */
+    EVERY_WRITE,
+    /**
+     * Write and force the records gathered during the last second, once per second.
+     */
+    PERIODIC,
+    /**
+     * Write records as soon as possible but leave forcing them to the operating system.
+     * Survives a crash of the application but not of the machine.
+     */
+    NEVER
+}
@@ -0,0 +1,153 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+import sheep.parsing.ParseException;
+import sheep.parsing.Parser;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * The rows of a sheet file that have not been loaded into a sheet yet.
+ * <p>
+ * For a text file, only the offset and length of each line of the file are indexed up front.
+ * For a compressed file, see {@link CompressedSheetFile}, only the block holding a row is
+ * decompressed. Either way, a row is decoded and parsed the first time it is asked for,
+ * see {@link Sheet#loadLazily(LazyRows)}.
+ */
+final class LazyRows {
+    private final IntFunction<String> lines;
+    private final Runnable release;
+    private long[] starts = new long[1024];
+    private int[] lengths = new int[1024];
+    private final int rows;
+    private int columns;
+    private final Parser parser;
+    private final Expression defaultExpression;
+    private final BitSet loaded = new BitSet();
+    private int remaining;
+    private boolean closed;
+
+    /**
+     * Index the rows of a text sheet file in a single pass.
+     *
+     * @param text              The mapped file, kept open until every row is loaded.
+     * @param parser            The parser used for the cells of each row.
+     * @param defaultExpression The formula of empty cells.
+     */
+    LazyRows(SheetText text, Parser parser, Expression defaultExpression) {
+        this.lines = row -> text.line(starts[row], starts[row] + lengths[row]);
+        this.release = text::close;
+        this.parser = parser;
+        this.defaultExpression = defaultExpression;
+        int[] row = {0};
+        text.scan(0, (start, end, pipes) -> {
+            if (row[0] == starts.length) {
+                starts = Arrays.copyOf(starts, row[0] * 2);
+                lengths = Arrays.copyOf(lengths, row[0] * 2);
+            }
+            starts[row[0]] = start;
+            lengths[row[0]] = Math.toIntExact(end - start);
+            columns = Math.max(columns, pipes + 1);
+            row[0]++;
+            return true;
+        });
+        this.rows = row[0];
+        this.remaining = rows;
+    }
+
+    /**
+     * Read the rows of a compressed sheet file as they are needed.
+     *
+     * @param file              The open file, closed once every row is loaded
+     *                          or the rows are closed, see {@link #close()}.
+     * @param parser            The parser used for the cells of each row.
+     * @param defaultExpression The formula of empty cells.
+     */
+    LazyRows(CompressedSheetFile file, Parser parser, Expression defaultExpression) {
+        this.lines = file::row;
+        this.release = file::close;
+        this.parser = parser;
+        this.defaultExpression = defaultExpression;
+        this.rows = file.rows();
+        this.columns = file.columns();
+        this.remaining = rows;
+    }
+
+    /**
+     * Amount of rows in the file.
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * One more than the amount of pipes in the row with the most pipes.
+     */
+    int columns() {
+        return columns;
+    }
+
+    /**
+     * Whether the given row has been parsed.
+     */
+    boolean isLoaded(int row) {
+        return loaded.get(row);
+    }
+
+    /**
+     * Whether every row has been parsed.
+     */
+    boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /**
+     * Parse a row, marking it as loaded if every cell of it parses.
+     * Cells that hold the default expression, or are missing from the end of the row, are null.
+     *
+     * @param row     The row to parse.
+     * @param columns Amount of columns of the sheet.
+     * @return The formula of each cell of the row.
+     * @throws ParseException If a cell of the row fails to parse,
+     *                        the message names the cell.
+     */
+    Expression[] parse(int row, int columns) throws ParseException {
+        String[] cells = lines.apply(row).split("\\|");
+        Expression[] formulas = new Expression[columns];
+        String empty = defaultExpression.render();
+        for (int column = 0; column < cells.length; column++) {
+            Expression formula;
+            try {
+                formula = parser.parse(cells[column]);
+            } catch (ParseException e) {
+                throw new ParseException("Unable to parse "
+                        + new CellLocation(row, column) + ": " + cells[column]);
+            }
+            if (formula.getClass() != defaultExpression.getClass()
+                    || !formula.render().equals(empty)) {
+                formulas[column] = formula;
+            }
+        }
+        // only once every cell parsed, a row that fails stays unloaded
+        loaded.set(row);
+        remaining--;
+        if (remaining == 0) {
+            close();
+        }
+        return formulas;
+    }
+
+    /**
+     * Release the file the rows are read from, e.g. once the sheet is closed.
+     * Rows that are not loaded yet can no longer be parsed.
+     * Closing the rows more than once has no effect.
+     */
+    void close() {
+        if (!closed) {
+            closed = true;
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package sheep.sheets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Cell storage outside of the Java heap, in direct or memory mapped byte buffers.
+ * <p>
+ * Cells are grouped into blocks of {@link #BLOCK_CELLS} cells, each held in a single
+ * {@link ByteBuffer} as a column of 8 byte numbers, then a column of 4 byte
+ * formula handles, then a column of 1 byte value kinds, 13 bytes per cell.
+ * Blocks keep every buffer below the 2 GB limit of a buffer. The garbage collector
+ * never has to trace the cells, which keeps pauses short for very large sheets.
+ * <p>
+ * The buffers are either allocated in native memory or mapped from a file,
+ * in which case the operating system pages cells in and out as needed.
+ * The memory is released once the store is no longer reachable.
+ */
+final class OffHeapCellStore implements CellStore {
+    /**
+     * Amount of bytes used by each cell.
+     */
+    static final long CELL_BYTES = Long.BYTES + Integer.BYTES + Byte.BYTES;
+
+    /**
+     * Amount of cells in a block, the last block may hold less.
+     */
+    static final int BLOCK_CELLS = 1 << 26;
+
+    private static final int BLOCK_SHIFT = Integer.numberOfTrailingZeros(BLOCK_CELLS);
+    private static final int BLOCK_MASK = BLOCK_CELLS - 1;
+
+    private final int size;
+    private final ByteBuffer[] blocks;
+
+    private OffHeapCellStore(int size, ByteBuffer[] blocks) {
+        this.size = size;
+        this.blocks = blocks;
+        for (ByteBuffer block : blocks) {
+            block.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * The amount of cells in the given block of a store of the given size.
+     */
+    private static int blockCells(int size, int block) {
+        return Math.min(BLOCK_CELLS, size - block * BLOCK_CELLS);
+    }
+
+    private static int blockCount(int size) {
+        return (size + BLOCK_MASK) >>> BLOCK_SHIFT;
+    }
+
+    /**
+     * Allocate a store of empty cells in native memory.
+     *
+     * @param size Amount of cells to store.
+     * @return The new store.
+     */
+    static OffHeapCellStore allocate(int size) {
+        // allocated memory is zeroed, i.e. empty cells with the default formula
+        ByteBuffer[] blocks = new ByteBuffer[blockCount(size)];
+        for (int block = 0; block < blocks.length; block++) {
+            blocks[block] = ByteBuffer.allocateDirect((int) (blockCells(size, block) * CELL_BYTES));
+        }
+        return new OffHeapCellStore(size, blocks);
+    }
+
+    /**
+     * Map a store from a file, creating or resizing the file as required.
+     * <p>
+     * The file only backs the memory of the store, the cells it held before are
+     * not meaningful, e.g. their formula handles referred to the formulas of
+     * another sheet. The store must be cleared, see {@link #clear()}, before it is used.
+     *
+     * @param file The file backing the store.
+     * @param size Amount of cells to store.
+     * @return The new store.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    static OffHeapCellStore map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer[] blocks = new ByteBuffer[blockCount(size)];
+            for (int block = 0; block < blocks.length; block++) {
+                // a mapping stays valid once the channel is closed
+                blocks[block] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        block * BLOCK_CELLS * CELL_BYTES, blockCells(size, block) * CELL_BYTES);
+            }
+            return new OffHeapCellStore(size, blocks);
+        }
+    }
+
+    /**
+     * Empty every cell of the store.
+     */
+    void clear() {
+        for (ByteBuffer block : blocks) {
+            int position = 0;
+            for (; position + Long.BYTES <= block.capacity(); position += Long.BYTES) {
+                block.putLong(position, 0);
+            }
+            for (; position < block.capacity(); position++) {
+                block.put(position, (byte) 0);
+            }
+        }
+    }
+
+    private ByteBuffer block(int index) {
+        return blocks[index >>> BLOCK_SHIFT];
+    }
+
+    private int formulasOffset(int index) {
+        return blockCells(size, index >>> BLOCK_SHIFT) * Long.BYTES;
+    }
+
+    private int kindsOffset(int index) {
+        return blockCells(size, index >>> BLOCK_SHIFT) * (Long.BYTES + Integer.BYTES);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte kind(int index) {
+        return block(index).get(kindsOffset(index) + (index & BLOCK_MASK));
+    }
+
+    @Override
+    public void setKind(int index, byte kind) {
+        block(index).put(kindsOffset(index) + (index & BLOCK_MASK), kind);
+    }
+
+    @Override
+    public long number(int index) {
+        return block(index).getLong((index & BLOCK_MASK) * Long.BYTES);
+    }
+
+    @Override
+    public void setNumber(int index, long number) {
+        block(index).putLong((index & BLOCK_MASK) * Long.BYTES, number);
+    }
+
+    @Override
+    public int formula(int index) {
+        return block(index).getInt(formulasOffset(index) + (index & BLOCK_MASK) * Integer.BYTES);
+    }
+
+    @Override
+    public void setFormula(int index, int handle) {
+        block(index).putInt(formulasOffset(index) + (index & BLOCK_MASK) * Integer.BYTES, handle);
+    }
+}
@@ -0,0 +1,13 @@
+package sheep.sheets;
+
+/**
+ * Counters of the paged cell storage of a sheet, see {@link SheetBuilder#pageTo}.
+ *
+ * @param hits      Amount of cell accesses to a page already in memory.
+ * @param misses    Amount of cell accesses that had to read a page from the page file.
+ * @param evictions Amount of pages dropped from memory to make room for another.
+ * @param writes    Amount of dirty pages written back to the page file.
+ * @param resident  Amount of pages currently in memory.
+ */
+public record PageStatistics(long hits, long misses, long evictions, long writes, int resident) {
+}
@@ -0,0 +1,291 @@
+package sheep.sheets;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cell storage in a page file, of which only a bounded working set is kept in memory.
+ * <p>
+ * Cells are grouped into pages of whole rows. A page is read from the page file
+ * the first time one of its cells is accessed, and the least recently used page is
+ * dropped once the working set is full. Dropped pages that were written to are
+ * written back to the page file on a background thread, while the sheet carries on.
+ * A page stays pending until its write completes, a page that is faulted back
+ * in before then is taken from the pending write rather than read from the file,
+ * so no write is ever lost.
+ * <p>
+ * Within a page, cells are laid out the same way as {@link OffHeapCellStore}.
+ * Pages that were never written read as empty cells.
+ * The page file is closed by {@link #close()}, or once the store is no longer reachable.
+ */
+final class PagedCellStore implements CellStore {
+    /**
+     * Preferred size of a page in bytes, rounded to whole rows.
+     */
+    static final int PAGE_BYTES = 64 * 1024;
+
+    private static final Executor WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheep-page-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int size;
+    private final int pageCells;
+    private final int maxResident;
+    private final FileChannel file;
+    private final Map<Integer, Page> resident;
+    // pages whose write has not completed yet, by page number
+    private final Map<Integer, Page> writing = new ConcurrentHashMap<>();
+    private final Executor writer;
+    private final Cleaner.Cleanable closer;
+
+    // the last page accessed, checked before the working set
+    private Page current;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * A block of rows held in memory.
+     */
+    private final class Page {
+        private final int number;
+        private final ByteBuffer data;
+        private final int offset;
+        private boolean dirty;
+        // incremented on each eviction, only the latest write-back clears the pending write
+        private volatile int evicted;
+        private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+        private Page(int number, ByteBuffer data) {
+            this.number = number;
+            this.data = data;
+            this.offset = number * pageCells;
+        }
+    }
+
+    /**
+     * Create a store of empty cells paged to the given file.
+     *
+     * @param file   The page file, created or truncated.
+     * @param size   Amount of cells to store.
+     * @param columns Amount of columns of the sheet, pages hold whole rows.
+     * @param memory Amount of bytes of pages to keep in memory.
+     * @throws IOException If the page file cannot be opened.
+     */
+    PagedCellStore(Path file, int size, int columns, long memory) throws IOException {
+        this(file, size, columns, memory, WRITER);
+    }
+
+    /**
+     * Create a store of empty cells paged to the given file,
+     * writing pages back on the given executor.
+     *
+     * @see #PagedCellStore(Path, int, int, long)
+     */
+    PagedCellStore(Path file, int size, int columns, long memory, Executor writer)
+            throws IOException {
+        this.size = size;
+        int pageRows = Math.max(1, PAGE_BYTES / (int) (columns * OffHeapCellStore.CELL_BYTES));
+        this.pageCells = pageRows * columns;
+        this.maxResident = (int) Math.max(2, memory / (pageCells * OffHeapCellStore.CELL_BYTES));
+        this.writer = writer;
+        this.file = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+        this.closer = CLEANER.register(this, closing(this.file));
+    }
+
+    /**
+     * Closes the page file, without referring to the store.
+     */
+    private static Runnable closing(FileChannel file) {
+        return () -> {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // a scratch file, nothing is lost
+            }
+        };
+    }
+
+    @Override
+    public Optional<PageStatistics> pageStatistics() {
+        return Optional.of(new PageStatistics(hits, misses, evictions, writes.get(), resident.size()));
+    }
+
+    /**
+     * Wait for pending writes and close the page file.
+     * The store must not be used afterwards.
+     */
+    void close() {
+        for (Page page : writing.values()) {
+            page.written.join();
+        }
+        closer.clean();
+    }
+
+    /**
+     * Write every dirty page back to the page file and wait for all writes to complete.
+     *
+     * @throws UncheckedIOException If a page cannot be written.
+     */
+    void flush() {
+        for (Page page : resident.values()) {
+            if (page.dirty) {
+                page.written.join();
+                page.dirty = false;
+                write(page);
+            }
+        }
+        for (Page page : writing.values()) {
+            page.written.join();
+        }
+    }
+
+    private Page page(int index) {
+        Page page = current;
+        int number = index / pageCells;
+        if (page != null && page.number == number) {
+            hits++;
+            return page;
+        }
+        page = resident.get(number);
+        if (page != null) {
+            hits++;
+        } else {
+            misses++;
+            page = fault(number);
+        }
+        current = page;
+        return page;
+    }
+
+    private Page fault(int number) {
+        if (resident.size() >= maxResident) {
+            Iterator<Page> oldest = resident.values().iterator();
+            evict(oldest.next());
+            oldest.remove();
+        }
+        // the page stays pending until its write completes
+        Page page = writing.get(number);
+        if (page == null) {
+            page = new Page(number, read(number));
+        }
+        resident.put(number, page);
+        return page;
+    }
+
+    private void evict(Page page) {
+        evictions++;
+        if (current == page) {
+            current = null;
+        }
+        if (!page.dirty) {
+            return;
+        }
+        page.dirty = false;
+        int eviction = ++page.evicted;
+        writing.put(page.number, page);
+        page.written = page.written.thenRunAsync(() -> {
+            write(page);
+            if (page.evicted == eviction) {
+                writing.remove(page.number, page);
+            }
+        }, writer);
+    }
+
+    private ByteBuffer read(int number) {
+        ByteBuffer data = ByteBuffer.allocate((int) (pageCells * OffHeapCellStore.CELL_BYTES));
+        long position = number * (long) data.capacity();
+        try {
+            while (data.hasRemaining()) {
+                if (file.read(data, position + data.position()) < 0) {
+                    break; // never written, the rest of the page is empty
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read page " + number, e);
+        }
+        return data.clear();
+    }
+
+    private void write(Page page) {
+        ByteBuffer data = page.data.duplicate().clear();
+        long position = page.number * (long) data.capacity();
+        try {
+            while (data.hasRemaining()) {
+                file.write(data, position + data.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write page " + page.number, e);
+        }
+        writes.incrementAndGet();
+    }
+
+    private Page dirty(int index) {
+        Page page = page(index);
+        page.dirty = true;
+        return page;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte kind(int index) {
+        Page page = page(index);
+        return page.data.get(12 * pageCells + index - page.offset);
+    }
+
+    @Override
+    public void setKind(int index, byte kind) {
+        Page page = dirty(index);
+        page.data.put(12 * pageCells + index - page.offset, kind);
+    }
+
+    @Override
+    public long number(int index) {
+        Page page = page(index);
+        return page.data.getLong((index - page.offset) * Long.BYTES);
+    }
+
+    @Override
+    public void setNumber(int index, long number) {
+        Page page = dirty(index);
+        page.data.putLong((index - page.offset) * Long.BYTES, number);
+    }
+
+    @Override
+    public int formula(int index) {
+        Page page = page(index);
+        return page.data.getInt(8 * pageCells + (index - page.offset) * Integer.BYTES);
+    }
+
+    @Override
+    public void setFormula(int index, int handle) {
+        Page page = dirty(index);
+        page.data.putInt(8 * pageCells + (index - page.offset) * Integer.BYTES, handle);
+    }
+}
@@ -0,0 +1,364 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+import sheep.expression.arithmetic.Arithmetic;
+import sheep.expression.arithmetic.Divide;
+import sheep.expression.arithmetic.Equal;
+import sheep.expression.arithmetic.Less;
+import sheep.expression.arithmetic.Mean;
+import sheep.expression.arithmetic.Median;
+import sheep.expression.arithmetic.Minus;
+import sheep.expression.arithmetic.Plus;
+import sheep.expression.arithmetic.Times;
+import sheep.expression.basic.Constant;
+import sheep.expression.basic.Reference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A formula lowered into a flat postfix instruction array.
+ * <p>
+ * Programs are run by a small stack machine over a caller supplied
+ * {@code long[]} stack, see {@link #run(CellReader, long[])}.
+ * Running a program reads its references directly from a {@link CellReader}
+ * and does not allocate, unlike walking the {@link Expression}
+ * tree of the formula which creates argument arrays and constants at each level.
+ * <p>
+ * The instructions are stored in a single {@code int[]}, each opcode is followed by its operands:
+ * <ul>
+ *     <li>{@link #CONST} index: push the constant at index of the constant pool.</li>
+ *     <li>{@link #LOAD} row column: push the value of the cell.</li>
+ *     <li>any operator, e.g. {@link #PLUS}, arity: replace the top arity values
+ *     of the stack with the result of the operator.</li>
+ *     <li>{@link #STORE} slot: copy the top of the stack into a local slot,
+ *     used to compute repeated sub-expressions only once.</li>
+ *     <li>{@link #FETCH} slot: push the value of a local slot.</li>
+ * </ul>
+ * Local slots are kept in the stack array after the deepest stack position.
+ */
+final class Program {
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int PLUS = 2;
+    static final int MINUS = 3;
+    static final int TIMES = 4;
+    static final int DIVIDE = 5;
+    static final int EQUAL = 6;
+    static final int LESS = 7;
+    static final int MEAN = 8;
+    static final int MEDIAN = 9;
+    static final int STORE = 10;
+    static final int FETCH = 11;
+
+    private final int[] code;
+    private final long[] constants;
+    private final int maxStack;
+    private final int locals;
+
+    /**
+     * Create a program from its instructions.
+     *
+     * @param code      The instructions followed by their operands.
+     * @param constants The constant pool indexed by {@link #CONST} instructions.
+     * @param maxStack  The maximum depth of the stack while running.
+     * @param locals    The amount of local slots used by {@link #STORE} and {@link #FETCH}.
+     */
+    Program(int[] code, long[] constants, int maxStack, int locals) {
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.locals = locals;
+    }
+
+    /**
+     * Amount of stack array slots needed to run this program.
+     *
+     * @return The maximum depth of the stack plus the amount of locals.
+     */
+    int frameSize() {
+        return maxStack + locals;
+    }
+
+    /**
+     * Amount of instructions and operands in this program.
+     *
+     * @return The length of the instruction array.
+     */
+    int length() {
+        return code.length;
+    }
+
+    /**
+     * Run the program.
+     *
+     * @param cells The cells that references are read from.
+     * @param stack The stack to run on, its contents are overwritten.
+     * @return The value of the formula.
+     * @throws RuntimeException {@link CellReader#NOT_A_NUMBER} if a referenced cell
+     *                          does not hold a number, or any error of the operators.
+     * @requires stack.length &gt;= frameSize()
+     */
+    long run(CellReader cells, long[] stack) {
+        int top = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            if (op == CONST) {
+                stack[top++] = constants[code[pc + 1]];
+                pc += 2;
+                continue;
+            }
+            if (op == LOAD) {
+                stack[top++] = cells.number(code[pc + 1], code[pc + 2]);
+                pc += 3;
+                continue;
+            }
+            if (op == STORE) {
+                stack[maxStack + code[pc + 1]] = stack[top - 1];
+                pc += 2;
+                continue;
+            }
+            if (op == FETCH) {
+                stack[top++] = stack[maxStack + code[pc + 1]];
+                pc += 2;
+                continue;
+            }
+            int arity = code[pc + 1];
+            pc += 2;
+            int base = top - arity;
+            stack[base] = perform(op, stack, base, top);
+            top = base + 1;
+        }
+        return stack[0];
+    }
+
+    /**
+     * Perform an operator on the values stack[from] to stack[to - 1].
+     * The values may be reordered.
+     */
+    static long perform(int op, long[] stack, int from, int to) {
+        long result = stack[from];
+        switch (op) {
+            case PLUS:
+                for (int i = from + 1; i < to; i++) {
+                    result += stack[i];
+                }
+                return result;
+            case MINUS:
+                for (int i = from + 1; i < to; i++) {
+                    result -= stack[i];
+                }
+                return result;
+            case TIMES:
+                for (int i = from + 1; i < to; i++) {
+                    result *= stack[i];
+                }
+                return result;
+            case DIVIDE:
+                for (int i = from + 1; i < to; i++) {
+                    result /= stack[i];
+                }
+                return result;
+            case EQUAL:
+                for (int i = from + 1; i < to; i++) {
+                    if (stack[i] != result) {
+                        return 0;
+                    }
+                }
+                return 1;
+            case LESS:
+                for (int i = from + 1; i < to; i++) {
+                    if (stack[i - 1] >= stack[i]) {
+                        return 0;
+                    }
+                }
+                return 1;
+            case MEAN:
+                for (int i = from + 1; i < to; i++) {
+                    result += stack[i];
+                }
+                return (long) ((double) result / (to - from));
+            case MEDIAN:
+                Arrays.sort(stack, from, to);
+                int middleIndex = from + (to - from) / 2;
+                if ((to - from) % 2 != 0) {
+                    return stack[middleIndex];
+                }
+                return (stack[middleIndex - 1] + stack[middleIndex]) / 2;
+            default:
+                throw new IllegalStateException("Unknown operator " + op);
+        }
+    }
+
+    /**
+     * Receives the instructions of a program in postfix order,
+     * used to translate a program into other forms.
+     *
+     * @param <T> The translation of a (sub) program.
+     */
+    interface Visitor<T> {
+        T constant(long value);
+
+        T load(int row, int column);
+
+        T operator(int op, List<T> arguments);
+    }
+
+    /**
+     * Translate this program bottom up with the given visitor.
+     *
+     * @param visitor The translation of each instruction.
+     * @param <T>     The result of the translation.
+     * @return The translation of the whole program.
+     */
+    <T> T accept(Visitor<T> visitor) {
+        List<T> stack = new ArrayList<>();
+        List<T> slots = new ArrayList<>(Collections.nCopies(locals, null));
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            if (op == STORE) {
+                slots.set(code[pc + 1], stack.get(stack.size() - 1));
+                pc += 2;
+            } else if (op == FETCH) {
+                stack.add(slots.get(code[pc + 1]));
+                pc += 2;
+            } else if (op == CONST) {
+                stack.add(visitor.constant(constants[code[pc + 1]]));
+                pc += 2;
+            } else if (op == LOAD) {
+                stack.add(visitor.load(code[pc + 1], code[pc + 2]));
+                pc += 3;
+            } else {
+                List<T> arguments = stack.subList(stack.size() - code[pc + 1], stack.size());
+                T result = visitor.operator(op, new ArrayList<>(arguments));
+                arguments.clear();
+                stack.add(result);
+                pc += 2;
+            }
+        }
+        return stack.get(0);
+    }
+
+    /**
+     * Lower a formula into an optimized program.
+     * <p>
+     * The expression tree of the formula is translated node by node,
+     * then optimized by {@link ProgramOptimizer}.
+     * Only formulas built from numbers, cell references, the arithmetic operators,
+     * parentheses and MEAN or MEDIAN can be lowered, any other formula has to be interpreted.
+     *
+     * @param formula The formula to lower.
+     * @return The program of the formula, or empty if it cannot be lowered.
+     */
+    static Optional<Program> lower(Expression formula) {
+        Builder builder = new Builder();
+        if (!builder.lower(formula)) {
+            return Optional.empty();
+        }
+        return Optional.of(ProgramOptimizer.optimize(builder.build()));
+    }
+
+    /**
+     * Accumulates the instructions of a program while lowering.
+     */
+    private static final class Builder {
+        private final List<Integer> code = new ArrayList<>();
+        private final List<Long> constants = new ArrayList<>();
+        private int depth;
+        private int maxStack;
+
+        private void push() {
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        private void operator(int op, int arity) {
+            code.add(op);
+            code.add(arity);
+            depth -= arity - 1;
+        }
+
+        /**
+         * Lower an expression and its arguments, in postfix order.
+         *
+         * @return False if the expression cannot be lowered.
+         */
+        private boolean lower(Expression node) {
+            if (node instanceof Constant constant) {
+                constants.add(constant.getValue());
+                code.add(CONST);
+                code.add(constants.size() - 1);
+                push();
+                return true;
+            }
+            if (node instanceof Reference reference) {
+                Optional<CellLocation> location = CellLocation.maybeReference(reference.getIdentifier());
+                if (location.isEmpty()) {
+                    // built-ins and unknown identifiers are left to the interpreter
+                    return false;
+                }
+                code.add(LOAD);
+                code.add(location.get().getRow());
+                code.add(location.get().getColumn());
+                push();
+                return true;
+            }
+            if (!(node instanceof Arithmetic arithmetic)) {
+                return false;
+            }
+
+            Expression[] arguments = arithmetic.getArguments();
+            int opcode = opcode(arithmetic);
+            if (opcode < 0) {
+                // parentheses only wrap their single argument
+                if (arguments.length == 1
+                        && arithmetic.render().equals("(" + arguments[0].render() + ")")) {
+                    return lower(arguments[0]);
+                }
+                return false;
+            }
+            if (arguments.length == 0) {
+                return false;
+            }
+            for (Expression argument : arguments) {
+                if (!lower(argument)) {
+                    return false;
+                }
+            }
+            operator(opcode, arguments.length);
+            return true;
+        }
+
+        private static int opcode(Arithmetic node) {
+            if (node instanceof Plus) {
+                return PLUS;
+            } else if (node instanceof Minus) {
+                return MINUS;
+            } else if (node instanceof Times) {
+                return TIMES;
+            } else if (node instanceof Divide) {
+                return DIVIDE;
+            } else if (node instanceof Equal) {
+                return EQUAL;
+            } else if (node instanceof Less) {
+                return LESS;
+            } else if (node instanceof Mean) {
+                return MEAN;
+            } else if (node instanceof Median) {
+                return MEDIAN;
+            }
+            return -1;
+        }
+
+        private Program build() {
+            int[] instructions = code.stream().mapToInt(Integer::intValue).toArray();
+            long[] pool = constants.stream().mapToLong(Long::longValue).toArray();
+            return new Program(instructions, pool, maxStack, 0);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package sheep.sheets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimization pass applied to a {@link Program} after lowering.
+ * <p>
+ * The pass works on the program only, the {@link sheep.expression.Expression}
+ * a formula was parsed into is left untouched so that rendering a formula
+ * still reproduces what was typed. It
+ * <ul>
+ *     <li>flattens nested operators, e.g. {@code (1 + A1) + 2} into {@code 1 + A1 + 2},</li>
+ *     <li>folds operators on constants, e.g. {@code MEAN(1, 2, 3) * 60 * 60} into
+ *     {@code 7200}, and combines the constants of sums and products,</li>
+ *     <li>computes repeated sub-expressions once, storing them in a local slot.</li>
+ * </ul>
+ * Every program lowered by {@link Program#lower(sheep.expression.Expression)} is optimized.
+ * Sheets run their formulas as programs unless they are built with
+ * {@link SheetBuilder#interpretFormulas()}, so the pass applies to every formula
+ * that can be lowered.
+ */
+final class ProgramOptimizer {
+    /**
+     * A node of the expression tree rebuilt from a program.
+     * Nodes are compared structurally to find repeated sub-expressions.
+     */
+    private record Node(int op, long value, int row, int column, List<Node> arguments) {
+        private static Node constant(long value) {
+            return new Node(Program.CONST, value, 0, 0, List.of());
+        }
+
+        private boolean isConstant() {
+            return op == Program.CONST;
+        }
+    }
+
+    private final Map<Node, Integer> occurrences = new HashMap<>();
+    private final Map<Node, Integer> slots = new HashMap<>();
+    private final List<Integer> code = new ArrayList<>();
+    private final List<Long> constants = new ArrayList<>();
+    private int depth;
+    private int maxStack;
+
+    private ProgramOptimizer() {
+    }
+
+    /**
+     * Optimize a program.
+     *
+     * @param program A program without local slots.
+     * @return A program computing the same value with fewer instructions.
+     */
+    static Program optimize(Program program) {
+        Node root = program.accept(new Program.Visitor<>() {
+            @Override
+            public Node constant(long value) {
+                return Node.constant(value);
+            }
+
+            @Override
+            public Node load(int row, int column) {
+                return new Node(Program.LOAD, 0, row, column, List.of());
+            }
+
+            @Override
+            public Node operator(int op, List<Node> arguments) {
+                return simplify(op, arguments);
+            }
+        });
+
+        ProgramOptimizer optimizer = new ProgramOptimizer();
+        optimizer.count(root);
+        optimizer.emit(root);
+        return optimizer.build();
+    }
+
+    private static Node simplify(int op, List<Node> arguments) {
+        // flatten, sums and products in any position,
+        // differences and quotients only on the left as they fold left
+        List<Node> flat = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            Node argument = arguments.get(i);
+            boolean associative = op == Program.PLUS || op == Program.TIMES;
+            boolean leftFold = i == 0 && (op == Program.MINUS || op == Program.DIVIDE);
+            if (argument.op() == op && (associative || leftFold)) {
+                flat.addAll(argument.arguments());
+            } else {
+                flat.add(argument);
+            }
+        }
+
+        // combine the constants of sums and products, wrapping arithmetic
+        // keeps these commutative and associative
+        if (op == Program.PLUS || op == Program.TIMES) {
+            List<Node> combined = new ArrayList<>();
+            int constantIndex = -1;
+            for (Node argument : flat) {
+                if (!argument.isConstant()) {
+                    combined.add(argument);
+                } else if (constantIndex < 0) {
+                    constantIndex = combined.size();
+                    combined.add(argument);
+                } else {
+                    long[] values = {combined.get(constantIndex).value(), argument.value()};
+                    combined.set(constantIndex,
+                            Node.constant(Program.perform(op, values, 0, 2)));
+                }
+            }
+            flat = combined;
+            if (flat.size() == 1) {
+                return flat.get(0);
+            }
+        }
+
+        if (flat.stream().allMatch(Node::isConstant)) {
+            long[] values = flat.stream().mapToLong(Node::value).toArray();
+            try {
+                return Node.constant(Program.perform(op, values, 0, values.length));
+            } catch (ArithmeticException e) {
+                // e.g. division by zero, left for evaluation to report
+            }
+        }
+        return new Node(op, 0, 0, 0, List.copyOf(flat));
+    }
+
+    private void count(Node node) {
+        if (occurrences.merge(node, 1, Integer::sum) > 1) {
+            return;
+        }
+        for (Node argument : node.arguments()) {
+            count(argument);
+        }
+    }
+
+    private void push() {
+        depth++;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    private void emit(Node node) {
+        Integer slot = slots.get(node);
+        if (slot != null) {
+            code.add(Program.FETCH);
+            code.add(slot);
+            push();
+            return;
+        }
+
+        if (node.op() == Program.CONST) {
+            constants.add(node.value());
+            code.add(Program.CONST);
+            code.add(constants.size() - 1);
+            push();
+            return;
+        }
+        if (node.op() == Program.LOAD) {
+            code.add(Program.LOAD);
+            code.add(node.row());
+            code.add(node.column());
+            push();
+        } else {
+            for (Node argument : node.arguments()) {
+                emit(argument);
+            }
+            code.add(node.op());
+            code.add(node.arguments().size());
+            depth -= node.arguments().size() - 1;
+        }
+
+        if (occurrences.get(node) > 1) {
+            slots.put(node, slots.size());
+            code.add(Program.STORE);
+            code.add(slots.get(node));
+        }
+    }
+
+    private Program build() {
+        int[] instructions = code.stream().mapToInt(Integer::intValue).toArray();
+        long[] pool = constants.stream().mapToLong(Long::longValue).toArray();
+        return new Program(instructions, pool, maxStack, slots.size());
+    }
+}
@@ -0,0 +1,15 @@
+package sheep.sheets;
+
+/**
+ * Receives the progress of reading or writing a sheet file.
+ */
+@FunctionalInterface
+public interface Progress {
+    /**
+     * Called as a file is processed, with an increasing amount of bytes done.
+     *
+     * @param done  Amount of bytes of the file processed so far.
+     * @param total Size of the file in bytes.
+     */
+    void update(long done, long total);
+}
@@ -0,0 +1,93 @@
+package sheep.sheets;
+
+import sheep.core.SheetView;
+
+/**
+ * A {@link SheetView} that reads a rectangular range of cells in a single call,
+ * e.g. to export a sheet, rather than a {@link sheep.core.ViewElement} per cell.
+ * <p>
+ * Values are written into arrays given by the caller, starting at an offset, with
+ * the cells of the range either row after row or column after column, see {@link Order}.
+ * The same arrays can be reused to read a large sheet one range at a time.
+ * <pre>
+ * {@code
+ * long[] numbers = new long[rows * columns];
+ * byte[] kinds = new byte[rows * columns];
+ * view.readValues(0, 0, rows, columns, RangeView.Order.ROW_MAJOR, numbers, kinds, 0);
+ * }</pre>
+ */
+public interface RangeView extends SheetView {
+    /**
+     * The kind of a cell holding the default expression of the sheet.
+     */
+    byte EMPTY = CellValues.EMPTY;
+    /**
+     * The kind of a cell whose value is a number.
+     */
+    byte NUMBER = CellValues.NUMBER;
+    /**
+     * The kind of a cell holding any other value, only available rendered,
+     * see {@link #readRendered(int, int, int, int, Order, String[], int)}.
+     */
+    byte OTHER = CellValues.OTHER;
+
+    /**
+     * The order in which the cells of a range are written.
+     */
+    enum Order {
+        /**
+         * Every cell of the first row of the range, then of the second row, etc.
+         */
+        ROW_MAJOR,
+        /**
+         * Every cell of the first column of the range, then of the second column, etc.
+         */
+        COLUMN_MAJOR;
+
+        /**
+         * The position of a cell of a range, relative to the first written cell.
+         *
+         * @param row     The row of the cell, relative to the range.
+         * @param column  The column of the cell, relative to the range.
+         * @param rows    Amount of rows of the range.
+         * @param columns Amount of columns of the range.
+         */
+        int position(int row, int column, int rows, int columns) {
+            return this == ROW_MAJOR ? row * columns + column : column * rows + row;
+        }
+    }
+
+    /**
+     * Read the values of a range of cells as numbers and kinds.
+     *
+     * @param row     The first row of the range.
+     * @param column  The first column of the range.
+     * @param rows    Amount of rows of the range.
+     * @param columns Amount of columns of the range.
+     * @param order   The order to write the cells in.
+     * @param numbers Receives the number of each cell of kind {@link #NUMBER}, and 0 for other cells.
+     * @param kinds   Receives the kind of each cell, {@link #EMPTY}, {@link #NUMBER} or {@link #OTHER}.
+     * @param offset  The position in both arrays of the first written cell.
+     * @throws IndexOutOfBoundsException If the range is outside the sheet,
+     *                                   or the arrays are too short for the range.
+     */
+    void readValues(int row, int column, int rows, int columns, Order order,
+                    long[] numbers, byte[] kinds, int offset);
+
+    /**
+     * Read the rendered values of a range of cells, the same as the content of
+     * {@link #valueAt(int, int)} for each cell.
+     *
+     * @param row      The first row of the range.
+     * @param column   The first column of the range.
+     * @param rows     Amount of rows of the range.
+     * @param columns  Amount of columns of the range.
+     * @param order    The order to write the cells in.
+     * @param rendered Receives the rendered value of each cell.
+     * @param offset   The position in the array of the first written cell.
+     * @throws IndexOutOfBoundsException If the range is outside the sheet,
+     *                                   or the array is too short for the range.
+     */
+    void readRendered(int row, int column, int rows, int columns, Order order,
+                      String[] rendered, int offset);
+}
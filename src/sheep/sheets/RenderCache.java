@@ -0,0 +1,72 @@
+package sheep.sheets;
+
+import sheep.core.ViewElement;
+
+import java.util.Arrays;
+
+/**
+ * The view elements of recently rendered cells of a sheet, by cell index
+ * ({@code row * columns + column}), so that repainting the same cells
+ * does not render their expressions or allocate view elements again.
+ * <p>
+ * The cache is direct mapped: each cell index has a single slot, shared with the
+ * indexes a multiple of the cache size apart. The cells on screen form a
+ * contiguous range of indexes smaller than the cache, so they do not evict
+ * each other, and the cache takes the same memory however large the sheet is.
+ * <p>
+ * The sheet invalidates a cell whenever its formula or value is written.
+ */
+final class RenderCache {
+    /**
+     * Amount of cells the cache holds, a power of two.
+     */
+    static final int SLOTS = 1 << 12;
+
+    // the index + 1 of the cell in each slot, 0 if the slot is empty
+    private final int[] keys = new int[SLOTS];
+    private final ViewElement[] elements = new ViewElement[SLOTS];
+
+    /**
+     * The cached element of a cell.
+     *
+     * @param index The index of the cell.
+     * @return The element of the cell, or null if it is not cached.
+     */
+    ViewElement get(int index) {
+        int slot = index & (SLOTS - 1);
+        return keys[slot] == index + 1 ? elements[slot] : null;
+    }
+
+    /**
+     * Cache the element of a cell, replacing the cell in the same slot.
+     *
+     * @param index   The index of the cell.
+     * @param element The rendered element of the cell.
+     */
+    void put(int index, ViewElement element) {
+        int slot = index & (SLOTS - 1);
+        keys[slot] = index + 1;
+        elements[slot] = element;
+    }
+
+    /**
+     * Forget the element of a cell, e.g. as its formula or value changes.
+     *
+     * @param index The index of the cell.
+     */
+    void invalidate(int index) {
+        int slot = index & (SLOTS - 1);
+        if (keys[slot] == index + 1) {
+            keys[slot] = 0;
+            elements[slot] = null;
+        }
+    }
+
+    /**
+     * Forget every cached element.
+     */
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(elements, null);
+    }
+}
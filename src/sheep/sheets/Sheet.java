@@ -1,15 +1,28 @@
 package sheep.sheets;
 
 import sheep.core.SheetUpdate;
-import sheep.core.SheetView;
 import sheep.core.UpdateResponse;
 import sheep.core.ViewElement;
 import sheep.expression.Expression;
 import sheep.expression.TypeError;
+import sheep.expression.basic.Constant;
 import sheep.parsing.ParseException;
 import sheep.parsing.Parser;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 /**
  * Spreadsheet that evaluates its expressions and updates dependant cells.
@@ -21,17 +34,39 @@ import java.util.*;
  * whereas the value is what value the cell contains.
  * @stage2
  */
-public class Sheet implements SheetView, SheetUpdate {
+public class Sheet implements RangeView, SheetUpdate {
+    // Amount of characters rendered before writing them out when encoding.
+    private static final int ENCODE_BUFFER = 1 << 16;
 
-    private final Map<CellLocation, Expression> formulas = new HashMap<>();
-    private final Map<CellLocation, Expression> values = new HashMap<>();
-    private final Map<CellLocation, Set<CellLocation>> usages = new HashMap<>();
+    private final FormulaTable formulas;
+    private final CellValues values;
+    private final DependencyGraph graph;
     private final Map<String, Expression> builtins;
     private final Expression defaultExpression;
     private final int rows;
     private final int columns;
 
     private final Parser parser;
+    private final Map<String, Expression> state = new State();
+    // runs formulas as programs, null if formulas are interpreted
+    private FormulaCompiler compiler;
+    // rows of the file still to be loaded, null once every row is loaded
+    private LazyRows lazy;
+    // rows whose formulas changed since the last chunked save
+    private final BitSet dirtyRows = new BitSet();
+    // the chunked file this sheet was last saved to or loaded from
+    private ChunkedSheetFile chunked;
+    // journal of the accepted updates, null if not journaled
+    private SheetJournal journal;
+    // amount of accepted updates and fills, to tell whether the sheet changed
+    private long modifications;
+    // receive the cells changed by each committed update
+    private final List<SheetListener> listeners = new ArrayList<>();
+    // the cells changed by the running batch, null outside of a batch
+    private BitSet batch;
+    // rendered values and formulas of recently displayed cells
+    private final RenderCache valueViews = new RenderCache();
+    private final RenderCache formulaViews = new RenderCache();
 
     /**
      * Construct a new instance of the sheet class.
@@ -48,25 +83,314 @@ public class Sheet implements SheetView, SheetUpdate {
      */
     Sheet(Parser parser, Map<String, Expression> builtins,
           Expression defaultExpression, int rows, int columns) {
+        this(parser, builtins, defaultExpression, rows, columns,
+                new HeapCellStore(Math.multiplyExact(rows, columns)));
+    }
+
+    /**
+     * Construct a new sheet keeping its cells in the given store.
+     * <p>
+     * Behaves the same as {@link #Sheet(Parser, Map, Expression, int, int)},
+     * the store decides where cell values and formula handles live,
+     * e.g. outside of the Java heap with an {@link OffHeapCellStore}.
+     *
+     * @param parser            The parser instance used to create expressions.
+     * @param builtins          A mapping of built-in identifiers to expressions.
+     * @param defaultExpression The default expression to load in every cell.
+     * @param rows              Amount of rows for the new sheet.
+     * @param columns           Amount of columns for the new sheet.
+     * @param store             A store of rows * columns empty cells.
+     * @requires rows &gt; 0
+     * @requires columns &gt; 0 &amp;&amp; columns &lt; 26
+     */
+    Sheet(Parser parser, Map<String, Expression> builtins,
+          Expression defaultExpression, int rows, int columns, CellStore store) {
         this.parser = parser;
         this.rows = rows;
         this.columns = columns;
         this.defaultExpression = defaultExpression;
         this.builtins = new HashMap<>(builtins);
-        this.populate();
+        this.values = new CellValues(rows, columns, defaultExpression, store);
+        this.formulas = new FormulaTable(defaultExpression, this::resolveStored);
+        this.graph = new DependencyGraph(store.size());
+    }
+
+    /**
+     * Construct a new sheet with every cell already filled in.
+     * <p>
+     * Unlike inserting each formula with {@link #update(CellLocation, Expression)},
+     * the dependencies between the given formulas are recorded once
+     * and every cell is evaluated exactly once, after all of its dependencies.
+     * Rows that are shorter than the sheet are padded with the defaultExpression.
+     *
+     * @param parser            The parser instance used to create expressions.
+     * @param builtins          A mapping of built-in identifiers to expressions.
+     * @param defaultExpression The default expression to load in every missing cell.
+     * @param formulas          The formula of each cell, indexed by row then column.
+     * @param columns           Amount of columns for the new sheet.
+     * @throws TypeError If the evaluation of any cell results in a TypeError,
+     *                   the message names the cell that failed.
+     * @requires formulas.length &gt; 0
+     * @requires columns &gt; 0 &amp;&amp; columns &lt; 26
+     * @requires formulas[i].length &lt;= columns for every row i
+     */
+    Sheet(Parser parser, Map<String, Expression> builtins, Expression defaultExpression,
+          Expression[][] formulas, int columns) throws TypeError {
+        this(parser, builtins, defaultExpression, formulas, columns,
+                new HeapCellStore(Math.multiplyExact(formulas.length, columns)));
+    }
+
+    /**
+     * Construct a new sheet with every cell already filled in,
+     * keeping its cells in the given store.
+     *
+     * @param parser            The parser instance used to create expressions.
+     * @param builtins          A mapping of built-in identifiers to expressions.
+     * @param defaultExpression The default expression to load in every missing cell.
+     * @param formulas          The formula of each cell, indexed by row then column.
+     * @param columns           Amount of columns for the new sheet.
+     * @param store             A store of formulas.length * columns empty cells.
+     * @throws TypeError If the evaluation of any cell results in a TypeError,
+     *                   the message names the cell that failed.
+     * @see #Sheet(Parser, Map, Expression, Expression[][], int)
+     */
+    Sheet(Parser parser, Map<String, Expression> builtins, Expression defaultExpression,
+          Expression[][] formulas, int columns, CellStore store) throws TypeError {
+        this(parser, builtins, defaultExpression, formulas.length, columns, store);
+        IntStream.Builder filled = IntStream.builder();
+        String empty = defaultExpression.render();
+        for (int row = 0; row < formulas.length; row++) {
+            for (int column = 0; column < formulas[row].length; column++) {
+                Expression formula = formulas[row][column];
+                // parsed empty cells are equal to, but not the same as, the default expression
+                if (formula.getClass() == defaultExpression.getClass()
+                        && formula.render().equals(empty)) {
+                    continue;
+                }
+                int index = values.index(row, column);
+                restoreFormula(index, formula);
+                filled.add(index);
+            }
+        }
+        restoredFormulas();
+        evaluateAll(filled.build().toArray());
     }
 
-    private void populate() {
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < columns; j++) {
-                CellLocation location = new CellLocation(i, j);
-                values.put(location, defaultExpression);
-                formulas.put(location, defaultExpression);
-                usages.put(location, new HashSet<>());
+    /**
+     * Evaluate the given cells and their usages once each, in dependency order,
+     * without recording the previous values.
+     *
+     * @throws TypeError If the evaluation of any cell results in a TypeError,
+     *                   the message names the cell that failed.
+     */
+    private void evaluateAll(int[] cells) throws TypeError {
+        for (int index : evaluationOrder(cells)) {
+            try {
+                evaluate(index, formula(index));
+            } catch (TypeError e) {
+                CellLocation location = location(index);
+                throw new TypeError(e.getMessage() == null
+                        ? "in " + location : "in " + location + ": " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Store the formula of a cell while restoring a sheet, without evaluating it
+     * or recording its dependencies. Once every formula is restored,
+     * {@link #restoredFormulas()} must be called.
+     *
+     * @return The handle of the formula, see {@link #restoreFormula(int, int)}.
+     * @requires the cell holds the default expression
+     */
+    int restoreFormula(int index, Expression formula) {
+        int handle = formulas.acquire(formula);
+        values.store().setFormula(index, handle);
+        formulaViews.invalidate(index);
+        return handle;
+    }
+
+    /**
+     * Store a formula already restored into another cell while restoring a sheet,
+     * sharing its handle rather than looking the formula up again.
+     *
+     * @param index  The cell to store the formula in.
+     * @param handle The handle returned when the formula was first restored,
+     *               a template is placed in the given cell.
+     * @requires the cell holds the default expression
+     */
+    void restoreFormula(int index, int handle) {
+        values.store().setFormula(index, formulas.retain(handle));
+        formulaViews.invalidate(index);
+    }
+
+    /**
+     * Record the dependencies of every formula after restoring a sheet.
+     */
+    void restoredFormulas() {
+        CellStore store = values.store();
+        graph.rebuild(index -> formulas.dependencies(store.formula(index), index));
+    }
+
+    /**
+     * Empty every value and evaluate every cell that does not hold the default expression.
+     *
+     * @throws TypeError If the evaluation of any cell results in a TypeError,
+     *                   the message names the cell that failed.
+     */
+    void recalculateAll() throws TypeError {
+        CellStore store = values.store();
+        valueViews.clear();
+        IntStream.Builder filled = IntStream.builder();
+        for (int index = 0; index < store.size(); index++) {
+            values.set(index, defaultExpression);
+            if (store.formula(index) != 0) {
+                filled.add(index);
+            }
+        }
+        evaluateAll(filled.build().toArray());
+    }
+
+    /**
+     * Evaluate the given cells of a restored sheet, and every cell using them,
+     * e.g. cells whose value was not restored.
+     *
+     * @param cells The indexes of the cells to evaluate.
+     * @throws TypeError If the evaluation of any cell results in a TypeError,
+     *                   the message names the cell that failed.
+     */
+    void evaluateRestored(int[] cells) throws TypeError {
+        evaluateAll(cells);
+    }
+
+    /**
+     * Load the rows of this sheet from the given rows of a file as they are needed,
+     * instead of all at once.
+     * <p>
+     * A row is parsed and evaluated the first time one of its cells is read
+     * or updated, and whenever a cell of a loaded row depends on it.
+     * Reading the whole sheet, e.g. to encode it, loads every remaining row.
+     *
+     * @param rows The rows of the file, one for each row of this sheet.
+     * @requires every cell of this sheet holds the default expression
+     */
+    void loadLazily(LazyRows rows) {
+        this.lazy = rows;
+    }
+
+    /**
+     * Release the files this sheet keeps open, e.g. once it is no longer shown.
+     * <p>
+     * A sheet opened lazily, see {@link SheetBuilder#open(String)} and
+     * {@link SheetBuilder#openCompressed(Path)}, keeps its file open until every row
+     * is loaded. Once closed, rows that are not loaded yet can no longer be loaded.
+     * A journaled sheet, see {@link SheetBuilder#journal(JournalSync)}, writes and closes
+     * its journal, later updates are no longer journaled.
+     * Closing a sheet more than once has no effect.
+     *
+     * @throws UncheckedIOException If the journal could not be written or closed.
+     */
+    public void close() {
+        if (lazy != null) {
+            lazy.close();
+        }
+        if (journal != null) {
+            SheetJournal closing = journal;
+            journal = null;
+            try {
+                closing.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to close the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Load the given row and, transitively, every row its formulas depend on,
+     * then evaluate the loaded cells in dependency order.
+     * <p>
+     * If a row fails to parse, it stays unloaded, and the rows loaded before it
+     * are still evaluated, so that no loaded cell is left without its value.
+     *
+     * @throws IllegalStateException If a loaded cell fails to parse or evaluate.
+     */
+    private void load(int row) {
+        if (lazy == null || lazy.isLoaded(row)) {
+            return;
+        }
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(row);
+        IntStream.Builder loaded = IntStream.builder();
+        ParseException failure = null;
+        try {
+            while (!pending.isEmpty()) {
+                int next = pending.pop();
+                if (lazy.isLoaded(next)) {
+                    continue;
+                }
+                Expression[] cells = lazy.parse(next, columns);
+                for (int column = 0; column < columns; column++) {
+                    if (cells[column] == null) {
+                        continue;
+                    }
+                    CellLocation location = new CellLocation(next, column);
+                    setFormula(location, cells[column]);
+                    // loaded as it is in the file, not a change
+                    dirtyRows.clear(next);
+                    int index = index(location);
+                    loaded.add(index);
+                    for (int dependency : graph.dependencies(index)) {
+                        if (!lazy.isLoaded(dependency / columns)) {
+                            pending.push(dependency / columns);
+                        }
+                    }
+                }
+            }
+        } catch (ParseException e) {
+            failure = e;
+        }
+        if (lazy.isComplete()) {
+            lazy = null;
+        }
+        try {
+            evaluateAll(loaded.build().toArray());
+        } catch (TypeError e) {
+            throw new IllegalStateException("Unable to load row " + row + ": " + e.getMessage(), e);
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Unable to load row " + row + ": " + failure.getMessage(),
+                    failure);
+        }
+    }
+
+    /**
+     * Load the rows of every cell that the given formula depends on.
+     */
+    private void loadDependencies(Expression formula) {
+        if (lazy == null) {
+            return;
+        }
+        for (int dependency : resolve(formula)) {
+            load(dependency / columns);
+        }
+    }
+
+    /**
+     * Load every row that has not been loaded yet.
+     */
+    private void loadAll() {
+        for (int row = 0; lazy != null && row < rows; row++) {
+            load(row);
+        }
+    }
+
+    /**
+     * The values of every cell of this sheet.
+     */
+    CellValues values() {
+        return values;
+    }
+
     /**
      * The number of rows for this spreadsheet.
      *
@@ -100,8 +424,14 @@ public class Sheet implements SheetView, SheetUpdate {
      */
     @Override
     public ViewElement valueAt(int row, int column) {
-        return new ViewElement(valueAt(new CellLocation(row, column)).render(),
-                "white", "black");
+        load(row);
+        int index = values.index(row, column);
+        ViewElement element = valueViews.get(index);
+        if (element == null) {
+            element = new ViewElement(values.render(index), "white", "black");
+            valueViews.put(index, element);
+        }
+        return element;
     }
 
     /**
@@ -117,8 +447,58 @@ public class Sheet implements SheetView, SheetUpdate {
      */
     @Override
     public ViewElement formulaAt(int row, int column) {
-        return new ViewElement(formulaAt(new CellLocation(row, column)).render(),
-                "white", "black");
+        load(row);
+        int index = values.index(row, column);
+        ViewElement element = formulaViews.get(index);
+        if (element == null) {
+            element = new ViewElement(formula(index).render(), "white", "black");
+            formulaViews.put(index, element);
+        }
+        return element;
+    }
+
+    /**
+     * Read the values of a range of cells as numbers and kinds,
+     * straight from the value column without creating an expression per cell.
+     * Rows of a lazily loaded sheet are loaded first.
+     */
+    @Override
+    public void readValues(int row, int column, int rows, int columns, Order order,
+                           long[] numbers, byte[] kinds, int offset) {
+        CellValues.checkRange(this, row, column, rows, columns,
+                Math.min(numbers.length, kinds.length), offset);
+        CellStore store = values.store();
+        int step = order.position(0, 1, rows, columns);
+        for (int r = 0; r < rows; r++) {
+            load(row + r);
+            int index = values.index(row + r, column);
+            int position = offset + order.position(r, 0, rows, columns);
+            for (int c = 0; c < columns; c++, index++, position += step) {
+                byte kind = store.kind(index);
+                kinds[position] = kind;
+                numbers[position] = kind == NUMBER ? store.number(index) : 0;
+            }
+        }
+    }
+
+    /**
+     * Read the rendered values of a range of cells, without creating a {@link ViewElement}
+     * per cell or filling the cache of {@link #valueAt(int, int)}.
+     * Rows of a lazily loaded sheet are loaded first.
+     */
+    @Override
+    public void readRendered(int row, int column, int rows, int columns, Order order,
+                             String[] rendered, int offset) {
+        CellValues.checkRange(this, row, column, rows, columns, rendered.length, offset);
+        int step = order.position(0, 1, rows, columns);
+        for (int r = 0; r < rows; r++) {
+            load(row + r);
+            int index = values.index(row + r, column);
+            int position = offset + order.position(r, 0, rows, columns);
+            for (int c = 0; c < columns; c++, index++, position += step) {
+                rendered[position] = values.render(index);
+            }
+        }
     }
 
     /**
@@ -163,7 +543,8 @@ public class Sheet implements SheetView, SheetUpdate {
      * @requires location is within the bounds (row/columns) of the spreadsheet.
      */
     public Expression formulaAt(CellLocation location) {
-        return formulas.get(location);
+        load(location.getRow());
+        return formula(location);
     }
 
     /**
@@ -178,7 +559,8 @@ public class Sheet implements SheetView, SheetUpdate {
      * @requires location is within the bounds (row/columns) of the spreadsheet.
      */
     public Expression valueAt(CellLocation location) {
-        return values.get(location);
+        load(location.getRow());
+        return values.get(index(location));
     }
 
     /**
@@ -211,27 +593,181 @@ public class Sheet implements SheetView, SheetUpdate {
      * @see Expression#dependencies()
      */
     public Set<CellLocation> usedBy(CellLocation location) {
+        loadAll();
         Set<CellLocation> usages = new HashSet<>();
-        usedBy(location, usages);
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(index(location));
+        while (!pending.isEmpty()) {
+            int cell = pending.pop();
+            for (int i = 0; i < graph.usageCount(cell); i++) {
+                int usage = graph.usage(cell, i);
+                if (usages.add(location(usage))) {
+                    pending.push(usage);
+                }
+            }
+        }
         return usages;
     }
 
-    private void usedBy(CellLocation location, Set<CellLocation> seen) {
-        for (CellLocation next : usages.get(location)) {
-            if (seen.contains(next)) {
-                return;
+    /**
+     * Counters of the page accesses of this sheet, if its cells are paged
+     * in and out of memory, see {@link SheetBuilder#pageTo(Path, long)}.
+     *
+     * @return The page counters, or empty if the cells of the sheet are not paged.
+     */
+    public Optional<PageStatistics> pageStatistics() {
+        return values.store().pageStatistics();
+    }
+
+    /**
+     * Evaluate formulas with the given compiler.
+     * Formulas that the compiler cannot run are interpreted.
+     *
+     * @param compiler The compiler used to run formulas.
+     */
+    void compileWith(FormulaCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    private int index(CellLocation location) {
+        return values.index(location.getRow(), location.getColumn());
+    }
+
+    private CellLocation location(int index) {
+        return new CellLocation(index / columns, index % columns);
+    }
+
+    private Expression formula(CellLocation location) {
+        return formula(index(location));
+    }
+
+    /**
+     * The formula of the cell with the given index.
+     * A template shared by many cells is placed in the given cell.
+     */
+    Expression formula(int index) {
+        Expression formula = formulas.get(values.store().formula(index));
+        if (formula instanceof FormulaTemplate.Instance instance
+                && (instance.row() != index / columns || instance.column() != index % columns)) {
+            return instance.template().instantiate(index / columns, index % columns);
+        }
+        return formula;
+    }
+
+    /**
+     * Store the formula of a cell and record its dependencies.
+     */
+    private void setFormula(CellLocation location, Expression formula) {
+        CellStore store = values.store();
+        int index = index(location);
+        int previous = store.formula(index);
+        int handle = formulas.acquire(formula);
+        store.setFormula(index, handle);
+        formulaViews.invalidate(index);
+        graph.setDependencies(index, formulas.dependencies(handle, index));
+        formulas.release(previous);
+        dirtyRows.set(location.getRow());
+    }
+
+    /**
+     * The dependencies of a formula added to the formula table: the index offsets
+     * of its references for template instances, shared by every cell holding
+     * the template, otherwise the indexes of the cells it depends on.
+     */
+    private int[] resolveStored(Expression formula) {
+        if (formula instanceof FormulaTemplate.Instance instance) {
+            return instance.template().offsets(columns);
+        }
+        return resolve(formula);
+    }
+
+    /**
+     * The indexes of the cells that a formula depends on.
+     * References outside the sheet and built-ins are left out,
+     * they are never updated.
+     */
+    private int[] resolve(Expression formula) {
+        Set<String> dependencies = formula.dependencies();
+        int[] indexes = new int[dependencies.size()];
+        int size = 0;
+        for (String dependency : dependencies) {
+            Optional<CellLocation> location = CellLocation.maybeReference(dependency);
+            if (location.isPresent()
+                    && location.get().getRow() >= 0 && location.get().getRow() < rows
+                    && location.get().getColumn() >= 0 && location.get().getColumn() < columns) {
+                int index = index(location.get());
+                if (!Arrays.stream(indexes, 0, size).anyMatch(other -> other == index)) {
+                    indexes[size++] = index;
+                }
             }
-            seen.add(next);
-            usedBy(next, seen);
         }
+        return size == indexes.length ? indexes : Arrays.copyOf(indexes, size);
     }
 
-    private Map<String, Expression> createState() {
-        Map<String, Expression> symbols = new HashMap<>(builtins);
-        for (CellLocation location : formulas.keySet()) {
-            symbols.put(location.toString(), values.get(location));
+    /**
+     * Evaluate a formula and store its value at the given location,
+     * using the compiled form of the formula when available.
+     */
+    private void evaluate(int index, Expression formula) throws TypeError {
+        valueViews.invalidate(index);
+        if (compiler == null || !compiler.evaluate(formula, values, index)) {
+            values.set(index, formula.value(state));
+        }
+    }
+
+    /**
+     * The symbols available to expressions: the built-ins and the value of every cell.
+     * <p>
+     * Cell values are read from the value column on demand, rather than copying
+     * every cell into a map before each evaluation.
+     */
+    private final class State extends AbstractMap<String, Expression>
+            implements FormulaTemplate.CellState {
+        private int cellIndex(Object key) {
+            if (!(key instanceof String name)) {
+                return -1;
+            }
+            Optional<CellLocation> location = CellLocation.maybeReference(name);
+            if (location.isEmpty()
+                    || location.get().getRow() < 0 || location.get().getRow() >= rows
+                    || location.get().getColumn() < 0 || location.get().getColumn() >= columns
+                    || !location.get().toString().equals(name)) {
+                return -1;
+            }
+            return index(location.get());
+        }
+
+        @Override
+        public Expression get(Object key) {
+            int index = cellIndex(key);
+            return index < 0 ? builtins.get(key) : values.get(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return cellIndex(key) >= 0 || builtins.containsKey(key);
+        }
+
+        @Override
+        public Expression cell(int row, int column) {
+            if (row < 0 || row >= rows || column < 0 || column >= columns) {
+                return null;
+            }
+            return values.get(values.index(row, column));
+        }
+
+        @Override
+        public Set<Entry<String, Expression>> entrySet() {
+            loadAll();
+            Map<String, Expression> symbols = new HashMap<>(builtins);
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    symbols.put(new CellLocation(row, column).toString(),
+                            values.get(values.index(row, column)));
+                }
+            }
+            return Collections.unmodifiableMap(symbols).entrySet();
         }
-        return symbols;
     }
 
     /**
@@ -263,44 +799,312 @@ public class Sheet implements SheetView, SheetUpdate {
      * @requires location is within the bounds (row/columns) of the spreadsheet.
      */
     public void update(CellLocation location, Expression cell) throws TypeError {
-        Map<String, Expression> state = createState();
-        state.put(location.toString(), cell.value(state));
-        // recursively pre-calculate all the updated values
-        // this approach triggers a TypeError before the state is modified
-        applyUpdate(state, location);
-
-        // no type error, update the state
-        updateUsage(location, cell);
-        formulas.put(location, cell);
-        for (CellLocation existing : values.keySet()) {
-            if (state.containsKey(existing.toString())) {
-                values.put(existing, state.get(existing.toString()));
+        load(location.getRow());
+        loadDependencies(cell);
+        // calculate the updated values in dependency order, recording the
+        // previous values so that a TypeError leaves the sheet unchanged
+        int index = index(location);
+        BitSet changed = listeners.isEmpty() ? null : new BitSet();
+        values.begin();
+        try {
+            evaluate(index, cell);
+            int[] order = evaluationOrder(new int[]{index});
+            for (int i = 1; i < order.length; i++) {
+                evaluate(order[i], formula(order[i]));
             }
+        } catch (TypeError e) {
+            values.rollback();
+            throw e;
+        }
+        values.commit(changed);
+
+        setFormula(location, cell);
+        modifications++;
+        if (journal != null) {
+            journal.update(location.getRow(), location.getColumn(), cell.render());
+        }
+        if (changed != null) {
+            changed.set(index);
+            changed(changed);
         }
     }
 
-    private void applyUpdate(Map<String, Expression> state, CellLocation location)
-            throws TypeError {
-        for (CellLocation usage : usages.get(location)) {
-            Expression value = formulas.get(usage).value(state);
-            state.put(usage.toString(), value);
-            applyUpdate(state, usage);
+    /**
+     * Copy the formula at the source location into every cell below it,
+     * down to and including the given row.
+     * <p>
+     * Cell references in the formula are treated as relative to the source,
+     * e.g. filling {@code A0 * 2} from B0 down to row 2 stores
+     * {@code A1 * 2} in B1 and {@code A2 * 2} in B2.
+     * The filled cells share a single formula template and formula handle with
+     * the source, so the formula is not re-parsed, copied or resolved again.
+     * <p>
+     * The filled cells are evaluated once, in dependency order.
+     * If a {@link TypeError} occurs the sheet is left unchanged.
+     *
+     * @param source  The cell containing the formula to copy.
+     * @param lastRow The last row to fill (inclusive).
+     * @throws TypeError If the evaluation of any filled cell or any of its usages
+     *                   results in a TypeError being thrown.
+     * @throws IllegalArgumentException If a filled formula would refer to a
+     *                   cell outside the sheet.
+     * @requires source is within the bounds of the spreadsheet
+     *           and source.getRow() &lt;= lastRow &lt; rows.
+     */
+    public void fillDown(CellLocation source, int lastRow) throws TypeError {
+        fill(source, lastRow, source.getColumn());
+    }
+
+    /**
+     * Copy the formula at the source location into every cell to the right of it,
+     * up to and including the given column.
+     * <p>
+     * Behaves the same as {@link #fillDown(CellLocation, int)} but along a row.
+     *
+     * @param source     The cell containing the formula to copy.
+     * @param lastColumn The last column to fill (inclusive).
+     * @throws TypeError If the evaluation of any filled cell or any of its usages
+     *                   results in a TypeError being thrown.
+     * @throws IllegalArgumentException If a filled formula would refer to a
+     *                   cell outside the sheet.
+     * @requires source is within the bounds of the spreadsheet
+     *           and source.getColumn() &lt;= lastColumn &lt; columns.
+     */
+    public void fillRight(CellLocation source, int lastColumn) throws TypeError {
+        fill(source, source.getRow(), lastColumn);
+    }
+
+    private void fill(CellLocation source, int lastRow, int lastColumn) throws TypeError {
+        load(source.getRow());
+        Expression formula = formula(source);
+        FormulaTemplate template = FormulaTemplate.of(formula)
+                .orElseGet(() -> new FormulaTemplate(formula, source.getRow(), source.getColumn()));
+        int firstRow = source.getRow();
+        int firstColumn = source.getColumn();
+        if (!template.fits(firstRow, firstColumn, lastRow, lastColumn, rows, columns)) {
+            throw new IllegalArgumentException("Filling " + template.renderRelative()
+                    + " from " + source + " to " + new CellLocation(lastRow, lastColumn)
+                    + " refers outside the sheet");
+        }
+
+        if (lazy != null) {
+            int[] rowOffsets = template.rowOffsets();
+            for (int row = firstRow; row <= lastRow; row++) {
+                load(row);
+                for (int offset : rowOffsets) {
+                    load(row + offset);
+                }
+            }
+        }
+
+        // every filled cell shares the handle of the template,
+        // the previous handles are kept until the fill succeeds
+        CellStore store = values.store();
+        int width = lastColumn - firstColumn + 1;
+        int[] cells = new int[(lastRow - firstRow + 1) * width];
+        int[] previous = new int[cells.length];
+        int handle = formulas.acquire(template.instantiate(firstRow, firstColumn));
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = values.index(firstRow + i / width, firstColumn + i % width);
+            previous[i] = store.formula(cells[i]);
+            store.setFormula(cells[i], i == 0 ? handle : formulas.retain(handle));
+            formulaViews.invalidate(cells[i]);
+        }
+        setDependencies(cells);
+
+        BitSet changed = listeners.isEmpty() ? null : new BitSet();
+        try {
+            recalculate(cells, changed);
+        } catch (TypeError e) {
+            for (int i = 0; i < cells.length; i++) {
+                store.setFormula(cells[i], previous[i]);
+                formulaViews.invalidate(cells[i]);
+                formulas.release(handle);
+            }
+            setDependencies(cells);
+            throw e;
+        }
+        for (int handleBefore : previous) {
+            formulas.release(handleBefore);
+        }
+        dirtyRows.set(firstRow, lastRow + 1);
+        modifications++;
+        if (journal != null) {
+            journal.fill(firstRow, firstColumn, lastRow, lastColumn, formula.render());
+        }
+        if (changed != null) {
+            for (int index : cells) {
+                changed.set(index);
+            }
+            changed(changed);
         }
     }
 
-    private void updateUsage(CellLocation location, Expression newExpression) {
-        // remove all usages of old formula
-        Expression oldExpression = formulas.get(location);
-        for (String oldDep : oldExpression.dependencies()) {
-            Optional<CellLocation> ref = CellLocation.maybeReference(oldDep);
-            ref.ifPresent(cellLocation -> usages.get(cellLocation).remove(location));
+    /**
+     * Record the dependencies of the formulas now stored in the given cells.
+     * Large ranges rebuild the whole graph at once rather than editing it cell by cell.
+     */
+    private void setDependencies(int[] cells) {
+        CellStore store = values.store();
+        if ((long) cells.length * 8 >= store.size()) {
+            graph.rebuild(index -> formulas.dependencies(store.formula(index), index));
+            return;
         }
+        for (int index : cells) {
+            graph.setDependencies(index, formulas.dependencies(store.formula(index), index));
+        }
+    }
 
-        // insert all new usages
-        for (String dep : newExpression.dependencies()) {
-            Optional<CellLocation> ref = CellLocation.maybeReference(dep);
-            ref.ifPresent(cellLocation -> usages.get(cellLocation).add(location));
+    /**
+     * Evaluate the changed cells and every cell using them exactly once,
+     * each after all of its dependencies.
+     * If any evaluation fails, every value is restored.
+     *
+     * @param changed The cells whose formula changed.
+     * @param updated Receives the cells whose value changed, or null.
+     */
+    private void recalculate(int[] changed, BitSet updated) throws TypeError {
+        values.begin();
+        try {
+            for (int index : evaluationOrder(changed)) {
+                evaluate(index, formula(index));
+            }
+        } catch (TypeError e) {
+            values.rollback();
+            throw e;
+        }
+        values.commit(updated);
+    }
+
+    /**
+     * Order the given cells and their transitive usages such that every cell
+     * comes after the cells it depends on.
+     * Uses an explicit stack as fill ranges can create very long chains.
+     */
+    private int[] evaluationOrder(int[] changed) {
+        int[] postOrder = new int[Math.max(16, changed.length)];
+        int size = 0;
+        Set<Integer> visited = new HashSet<>();
+        // the path of the search, with the next usage to visit of each cell on it
+        int[] path = new int[16];
+        int[] next = new int[16];
+        for (int start : changed) {
+            if (!visited.add(start)) {
+                continue;
+            }
+            int depth = 0;
+            path[0] = start;
+            next[0] = 0;
+            while (depth >= 0) {
+                int cell = path[depth];
+                if (next[depth] < graph.usageCount(cell)) {
+                    int usage = graph.usage(cell, next[depth]++);
+                    if (visited.add(usage)) {
+                        if (++depth == path.length) {
+                            path = Arrays.copyOf(path, depth * 2);
+                            next = Arrays.copyOf(next, depth * 2);
+                        }
+                        path[depth] = usage;
+                        next[depth] = 0;
+                    }
+                } else {
+                    if (size == postOrder.length) {
+                        postOrder = Arrays.copyOf(postOrder, size * 2);
+                    }
+                    postOrder[size++] = cell;
+                    depth--;
+                }
+            }
+        }
+        // reverse post order
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = postOrder[size - 1 - i];
         }
+        return order;
+    }
+
+    /**
+     * The amount of updates and fills accepted by this sheet so far,
+     * which changes whenever the formulas of the sheet change.
+     */
+    long modifications() {
+        return modifications;
+    }
+
+    /**
+     * Register a listener to be notified of the cells changed by every
+     * committed update, fill or batch of this sheet.
+     * <p>
+     * Listeners are called on the thread that updated the sheet, after the update
+     * is complete, so they may read the sheet but should not update it.
+     *
+     * @param listener The listener to notify.
+     */
+    public void addListener(SheetListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop notifying a listener registered with {@link #addListener(SheetListener)}.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(SheetListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Perform several updates as one batch, notifying the listeners once
+     * when the batch ends with every cell changed by any of its updates,
+     * rather than once per update.
+     * <p>
+     * Batches may be nested, the listeners are notified when the outermost batch ends.
+     * Updates that succeeded before an update in the batch failed are still reported.
+     *
+     * @param updates Performs the updates of the batch, e.g. with {@link #update(int, int, String)}.
+     */
+    public void batch(Runnable updates) {
+        if (batch != null) {
+            updates.run();
+            return;
+        }
+        batch = new BitSet();
+        try {
+            updates.run();
+        } finally {
+            BitSet cells = batch;
+            batch = null;
+            changed(cells);
+        }
+    }
+
+    /**
+     * Notify the listeners of changed cells, or add them to the running batch.
+     */
+    private void changed(BitSet cells) {
+        if (batch != null) {
+            batch.or(cells);
+        } else if (!cells.isEmpty()) {
+            SheetChange change = new SheetChange(columns, cells);
+            for (SheetListener listener : List.copyOf(listeners)) {
+                listener.changed(change);
+            }
+        }
+    }
+
+    /**
+     * Take a consistent copy of the formulas and values of every cell,
+     * which can be read from any thread while this sheet is updated.
+     * <p>
+     * Taking a snapshot copies a few bytes per cell and renders nothing,
+     * so it is much cheaper than encoding the sheet. Every row is loaded first.
+     *
+     * @return The snapshot of this sheet.
+     */
+    public SheetSnapshot snapshot() {
+        loadAll();
+        return new SheetSnapshot(this, defaultExpression, values);
     }
 
     /**
@@ -329,18 +1133,259 @@ public class Sheet implements SheetView, SheetUpdate {
      * </ol>
      *
      * @return The string representation of the spreadsheet.
+     * @see #encode(Writer)
      * @stage2
      */
     @Override
     public String encode() {
-        StringJoiner builder = new StringJoiner("\n");
+        StringWriter out = new StringWriter();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never thrown by a StringWriter
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the string representation of the spreadsheet, see {@link #encode()},
+     * without building it in memory.
+     * <p>
+     * Rows are rendered into a buffer of bounded size which is reused
+     * until the whole sheet is written, so the memory used does not depend
+     * on the size of the sheet.
+     *
+     * @param out The writer to write to, it is flushed but not closed.
+     * @throws IOException If the writer fails.
+     */
+    public void encode(Writer out) throws IOException {
+        encodeRows(out, 0, rows);
+    }
+
+    /**
+     * Write the string representation of a range of rows, see {@link #encode(Writer)},
+     * without a new line after the last row.
+     *
+     * @param out  The writer to write to, it is flushed but not closed.
+     * @param from The first row to write.
+     * @param to   The row after the last row to write.
+     * @throws IOException If the writer fails.
+     */
+    void encodeRows(Writer out, int from, int to) throws IOException {
+        CellStore store = values.store();
+        String empty = defaultExpression.render();
+        writeRows(out, columns, from, to, index -> {
+            load(index / columns);
+            return store.formula(index) == 0 ? empty : formula(index).render();
+        });
+    }
+
+    /**
+     * Write the formulas of a range of rows in the text format, see {@link #encode(Writer)},
+     * through a buffer of bounded size, without a new line after the last row.
+     *
+     * @param out     The writer to write to, it is flushed but not closed.
+     * @param columns The amount of columns of each row.
+     * @param from    The first row to write.
+     * @param to      The row after the last row to write.
+     * @param render  Renders the formula of a cell given its index, called for each cell in order.
+     * @throws IOException If the writer fails.
+     */
+    static void writeRows(Writer out, int columns, int from, int to, IntFunction<String> render)
+            throws IOException {
+        StringBuilder buffer = new StringBuilder(ENCODE_BUFFER + 1024);
+        char[] chars = new char[0];
+        for (int row = from; row < to; row++) {
+            if (row > from) {
+                buffer.append('\n');
+            }
+            int index = row * columns;
+            for (int column = 0; column < columns; column++, index++) {
+                if (column > 0) {
+                    buffer.append('|');
+                }
+                buffer.append(render.apply(index));
+            }
+            if (buffer.length() >= ENCODE_BUFFER || row == to - 1) {
+                if (chars.length < buffer.length()) {
+                    chars = new char[buffer.length()];
+                }
+                buffer.getChars(0, buffer.length(), chars, 0);
+                out.write(chars, 0, buffer.length());
+                buffer.setLength(0);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the spreadsheet as CSV, with one record per row and one field per cell.
+     * <p>
+     * Either the computed value of every cell is written, or its formula.
+     * Formulas other than numbers start with '=', e.g. {@code =A0 + 1},
+     * so that other applications read them as formulas and
+     * {@link SheetBuilder#loadCsv(String)} reads back the same sheet.
+     * Fields holding commas, double quotes or new lines are quoted.
+     * Records end with a new line. Rows are written through a buffer of
+     * bounded size, as for {@link #encode(Writer)}.
+     *
+     * @param out    The writer to write to, it is flushed but not closed.
+     * @param values True to write the value of each cell, false to write its formula.
+     * @throws IOException If the writer fails.
+     */
+    public void encodeCsv(Writer out, boolean values) throws IOException {
+        CellStore store = this.values.store();
+        String empty = defaultExpression.render();
+        StringBuilder buffer = new StringBuilder(ENCODE_BUFFER + 1024);
+        char[] chars = new char[0];
         for (int row = 0; row < rows; row++) {
-            StringJoiner rowEncoding = new StringJoiner("|");
-            for (int column = 0; column < columns; column++) {
-                rowEncoding.add(formulas.get(new CellLocation(row, column)).render());
+            load(row);
+            int index = row * columns;
+            for (int column = 0; column < columns; column++, index++) {
+                if (column > 0) {
+                    buffer.append(',');
+                }
+                String field;
+                if (values) {
+                    field = this.values.render(index);
+                } else if (store.formula(index) == 0) {
+                    field = empty;
+                } else {
+                    Expression formula = formula(index);
+                    field = formula instanceof Constant ? formula.render() : "=" + formula.render();
+                }
+                SheetCsv.append(buffer, field);
+            }
+            buffer.append('\n');
+            if (buffer.length() >= ENCODE_BUFFER || row == rows - 1) {
+                if (chars.length < buffer.length()) {
+                    chars = new char[buffer.length()];
+                }
+                buffer.getChars(0, buffer.length(), chars, 0);
+                out.write(chars, 0, buffer.length());
+                buffer.setLength(0);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the string representation of the spreadsheet encoded as UTF-8,
+     * see {@link #encode(Writer)}.
+     *
+     * @param out The stream to write to, it is flushed but not closed.
+     * @throws IOException If the stream fails.
+     */
+    public void encode(OutputStream out) throws IOException {
+        encode(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write the string representation of the spreadsheet encoded as UTF-8
+     * to a channel, e.g. a {@link java.nio.channels.FileChannel},
+     * see {@link #encode(Writer)}.
+     *
+     * @param channel The channel to write to, it is not closed.
+     * @throws IOException If the channel fails.
+     */
+    public void encode(WritableByteChannel channel) throws IOException {
+        encode(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), ENCODE_BUFFER));
+    }
+
+    /**
+     * Write the spreadsheet in the binary sheet format.
+     * <p>
+     * Unlike {@link #encode()}, the binary format also stores the value of
+     * every cell, so {@link SheetBuilder#loadBinary(Path)} opens the sheet
+     * without evaluating any formula. Each distinct formula is stored once.
+     * The text format remains the format for interchange.
+     *
+     * @param out The stream to write to, it is flushed but not closed.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void encodeBinary(OutputStream out) throws IOException {
+        loadAll();
+        SheetFile.write(this, out);
+    }
+
+    /**
+     * Save the spreadsheet in the compressed sheet format, where the text format of
+     * {@link #encode()} is compressed in independent blocks of rows.
+     * <p>
+     * Blocks are compressed in parallel on the common pool. As each block can be
+     * decompressed on its own, {@link SheetBuilder#openCompressed(Path)} only
+     * decompresses the blocks of the rows that are read.
+     *
+     * @param path The path of the file to write, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveCompressed(Path path) throws IOException {
+        CompressedSheetFile.write(this, path, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Save the spreadsheet in the chunked sheet format, where rows are stored
+     * in independent blocks.
+     * <p>
+     * The first save to a path writes every block. Later saves to the path this
+     * sheet was last saved to, or loaded from with {@link SheetBuilder#loadChunked(Path)},
+     * only append the blocks of rows whose formulas changed since, so the time taken
+     * depends on the edits rather than on the size of the sheet.
+     * The file is replaced atomically: a failed save leaves the previous save readable.
+     *
+     * @param path The path of the file to save to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveChunked(Path path) throws IOException {
+        if (chunked == null || !chunked.path().toAbsolutePath().equals(path.toAbsolutePath())) {
+            chunked = ChunkedSheetFile.create(this, path);
+        } else {
+            BitSet changed = new BitSet();
+            for (int row = dirtyRows.nextSetBit(0); row >= 0; row = dirtyRows.nextSetBit(row + 1)) {
+                changed.set(ChunkedSheetFile.block(row));
             }
-            builder.add(rowEncoding.toString());
+            chunked.save(this, changed);
+        }
+        dirtyRows.clear();
+    }
+
+    /**
+     * Record that this sheet holds the formulas saved in a chunked file,
+     * so that saving to it again only writes the changed blocks.
+     */
+    void savedTo(ChunkedSheetFile file) {
+        chunked = file;
+        dirtyRows.clear();
+    }
+
+    /**
+     * Record every later update of this sheet in the given journal.
+     */
+    void journalTo(SheetJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Wait until every update accepted so far is written to the journal and forced to disk,
+     * see {@link SheetBuilder#journal(JournalSync)}. Does nothing if the sheet is not journaled.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    public void flushJournal() throws IOException {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Compact the journal into a new snapshot file now, rather than once it grows large,
+     * and wait until it is done. Does nothing if the sheet is not journaled.
+     *
+     * @throws IOException If the journal could not be written or the snapshot replaced.
+     */
+    public void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.compact();
         }
-        return builder.toString();
     }
 }
@@ -2,16 +2,29 @@ package sheep.sheets;
 
 import sheep.expression.Expression;
 import sheep.expression.TypeError;
+import sheep.expression.basic.Constant;
 import sheep.parsing.ParseException;
 import sheep.parsing.Parser;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Builder pattern to construct {@link Sheet} instances.
@@ -36,9 +49,24 @@ import java.util.Map;
  * @stage2
  */
 public class SheetBuilder {
+    // Amount of rows parsed by a single task when loading a sheet.
+    private static final int CHUNK_ROWS = 1024;
+    // Amount of chunks parsed at the same time when loading a sheet.
+    private static final int CHUNKS_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
     private final Map<String, Expression> builtins = new HashMap<>();
     private final Parser parser;
     private final Expression defaultExpression;
+    private Executor executor = ForkJoinPool.commonPool();
+    private boolean compile = true;
+    private int compileThreshold = -1;
+    private boolean offHeap = false;
+    private Path storeFile = null;
+    private Path pageFile = null;
+    private long pageMemory;
+    private JournalSync journalSync = null;
+    private Progress progress = (done, total) -> {
+    };
 
     /**
      * Construct an instance of SheetBuilder that will create
@@ -49,16 +77,94 @@ public class SheetBuilder {
         this.defaultExpression = defaultExpression;
     }
 
-    private static int countCols(String row) {
-        return Math.toIntExact(row.chars().filter(c -> c == '|').count()) + 1;
+    /**
+     * Parse a chunk of lines of a sheet file, one row per line.
+     * Stops at the first cell that cannot be parsed and reports its location.
+     */
+    private Expression[][] parseChunk(List<String> lines, int firstRow) {
+        Expression[][] chunk = new Expression[lines.size()][];
+        for (int i = 0; i < lines.size(); i++) {
+            String[] cells = lines.get(i).split("\\|");
+            chunk[i] = new Expression[cells.length];
+            for (int j = 0; j < cells.length; j++) {
+                try {
+                    chunk[i][j] = parser.parse(cells[j]);
+                } catch (ParseException e) {
+                    throw new CompletionException(new ParseException("Unable to parse "
+                            + new CellLocation(firstRow + i, j) + ": " + cells[j]));
+                }
+            }
+        }
+        return chunk;
     }
 
-    private static Expression parseOr(Parser parser, String input, Expression defaultExpr) {
-        try {
-            return parser.parse(input);
-        } catch (ParseException e) {
-            return defaultExpr;
+    /**
+     * Parse a chunk of records of a CSV file, one row per record.
+     * Whole numbers are stored as constants without the parser, any other field is parsed
+     * as a formula after removing an optional leading '='.
+     * Stops at the first cell that cannot be parsed and reports its location.
+     */
+    private Expression[][] parseCsvChunk(List<String> records, int firstRow) {
+        Expression[][] chunk = new Expression[records.size()][];
+        for (int i = 0; i < records.size(); i++) {
+            String[] fields = SheetCsv.fields(records.get(i));
+            chunk[i] = new Expression[fields.length];
+            for (int j = 0; j < fields.length; j++) {
+                String field = fields[j].startsWith("=") ? fields[j].substring(1) : fields[j];
+                if (SheetCsv.isNumber(field)) {
+                    chunk[i][j] = new Constant(Long.parseLong(field));
+                    continue;
+                }
+                try {
+                    chunk[i][j] = parser.parse(field);
+                } catch (ParseException e) {
+                    throw new CompletionException(new ParseException("Unable to parse "
+                            + new CellLocation(firstRow + i, j) + ": " + fields[j]));
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Rows of a sheet file being parsed.
+     *
+     * @param rows  The parsed rows.
+     * @param first The index of the first row.
+     * @param end   The offset in the file after the last row.
+     */
+    private record Chunk(CompletableFuture<Expression[][]> rows, int first, long end) {
+    }
+
+    private Chunk submit(List<String> lines, int first, long end) {
+        return submit(lines, first, end, false);
+    }
+
+    private Chunk submit(List<String> lines, int first, long end, boolean csv) {
+        List<String> chunk = List.copyOf(lines);
+        return new Chunk(CompletableFuture.supplyAsync(
+                () -> csv ? parseCsvChunk(chunk, first) : parseChunk(chunk, first), executor),
+                first, end);
+    }
+
+    /**
+     * Store the formulas of a parsed chunk in the sheet, without evaluating them.
+     * Empty cells are left holding the default expression.
+     */
+    private void apply(Sheet sheet, Chunk chunk, long size) {
+        Expression[][] rows = chunk.rows().join();
+        String empty = defaultExpression.render();
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < rows[i].length; j++) {
+                Expression formula = rows[i][j];
+                if (formula.getClass() == defaultExpression.getClass()
+                        && formula.render().equals(empty)) {
+                    continue;
+                }
+                sheet.restoreFormula(sheet.values().index(chunk.first() + i, j), formula);
+            }
         }
+        progress.update(chunk.end(), size);
     }
 
     /**
@@ -84,6 +190,223 @@ public class SheetBuilder {
         return this;
     }
 
+    /**
+     * Use the given executor to parse the rows of loaded sheets.
+     * <p>
+     * Loading a sheet parses its rows in chunks, each chunk is parsed
+     * by a task submitted to this executor.
+     * By default the common {@link ForkJoinPool} is used.
+     *
+     * <pre>
+     * {@code
+     * Sheet sheet = new SheetBuilder(parser, exp)
+     *         .parseWith(Executors.newFixedThreadPool(16))
+     *         .load("large.sheep");
+     * }</pre>
+     *
+     * @param executor The executor that parsing tasks are submitted to.
+     * @return The current instance of the SheetBuilder.
+     */
+    public SheetBuilder parseWith(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Always interpret the expressions of the formulas of constructed sheets.
+     * <p>
+     * By default, formulas are run as {@link Program}s lowered from their expression
+     * tree, which evaluates them without allocating. Formulas that cannot be lowered,
+     * e.g. those using built-ins, and programs that fail, e.g. reading a cell which
+     * does not hold a number, fall back to interpreting the expression.
+     *
+     * @return The current instance of the SheetBuilder.
+     */
+    public SheetBuilder interpretFormulas() {
+        this.compile = false;
+        return this;
+    }
+
+    /**
+     * Run the formulas of constructed sheets as {@link Program}s,
+     * see {@link #interpretFormulas()}, and compile them into method handles
+     * once they have been evaluated more than the given amount of times.
+     * <p>
+     * Compilation happens on a low priority background thread, until a formula
+     * is compiled it keeps running as a {@link Program}.
+     * By default, formulas are never compiled into method handles.
+     *
+     * @param threshold Amount of evaluations after which a formula is compiled.
+     * @return The current instance of the SheetBuilder.
+     * @requires threshold &gt;= 0
+     */
+    public SheetBuilder compileHotFormulas(int threshold) {
+        this.compile = true;
+        this.compileThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Report the progress of loading sheets to the given listener.
+     * <p>
+     * While a sheet file is loaded, the listener is called on the loading
+     * thread with the amount of bytes of the file read so far.
+     *
+     * @param progress The listener of the progress of loading a sheet.
+     * @return The current instance of the SheetBuilder.
+     */
+    public SheetBuilder reportProgress(Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Journal the updates of sheets loaded from a file, see {@link #load(String)}
+     * and {@link #open(String)}, so that they survive a crash without saving.
+     * <p>
+     * Every accepted update and fill is appended to a journal next to the file,
+     * on a background thread so updates do not wait for the disk.
+     * Loading the file again replays its journal over it. Once the journal grows large,
+     * it is compacted in the background into a new version of the file,
+     * which is replaced atomically. The compacted version is loaded with the same cell store,
+     * see {@link #storeOffHeap()}, {@link #storeMapped(Path)} and {@link #pageTo(Path, long)},
+     * using scratch files named after the configured ones followed by ".compaction".
+     * The journal is closed with the sheet, see {@link Sheet#close()}.
+     *
+     * @param sync When the journal is forced to disk.
+     * @return The current instance of the SheetBuilder.
+     * @see Sheet#flushJournal()
+     */
+    public SheetBuilder journal(JournalSync sync) {
+        this.journalSync = sync;
+        return this;
+    }
+
+    /**
+     * Keep the cells of constructed sheets outside of the Java heap.
+     * <p>
+     * Cell values and formula handles are stored in native memory with
+     * {@link OffHeapCellStore}, so the garbage collector does not have to
+     * trace them. Only cells holding values other than numbers, and the
+     * distinct formulas of the sheet, remain on the heap.
+     *
+     * @return The current instance of the SheetBuilder.
+     */
+    public SheetBuilder storeOffHeap() {
+        this.offHeap = true;
+        this.storeFile = null;
+        this.pageFile = null;
+        return this;
+    }
+
+    /**
+     * Keep the cells of constructed sheets outside of the Java heap,
+     * in memory mapped from the given file.
+     * <p>
+     * Behaves the same as {@link #storeOffHeap()} but the operating system
+     * may page cells out to the file. The file is created or resized as required,
+     * it is a scratch file and is not a saved sheet.
+     *
+     * @param file The file backing the cells of constructed sheets.
+     * @return The current instance of the SheetBuilder.
+     */
+    public SheetBuilder storeMapped(Path file) {
+        this.offHeap = true;
+        this.storeFile = file;
+        this.pageFile = null;
+        return this;
+    }
+
+    /**
+     * Keep the cells of constructed sheets in a page file, holding only
+     * a bounded working set of rows in memory.
+     * <p>
+     * Blocks of rows are read from the file when one of their cells is read,
+     * written or evaluated, and the least recently used block is dropped once
+     * the given amount of memory is used. Changed blocks are written back to the
+     * file in the background. The file is created or truncated, it is a scratch
+     * file and is not a saved sheet.
+     * See {@link Sheet#pageStatistics()} for the hit, miss and eviction counts.
+     *
+     * <pre>
+     * {@code
+     * Sheet sheet = new SheetBuilder(parser, exp)
+     *         .pageTo(Path.of("large.pages"), 512L * 1024 * 1024)
+     *         .load("large.sheep");
+     * }</pre>
+     *
+     * @param file   The page file backing the cells of constructed sheets.
+     * @param memory Amount of bytes of cells to keep in memory.
+     * @return The current instance of the SheetBuilder.
+     * @requires memory &gt; 0
+     */
+    public SheetBuilder pageTo(Path file, long memory) {
+        this.offHeap = false;
+        this.storeFile = null;
+        this.pageFile = file;
+        this.pageMemory = memory;
+        return this;
+    }
+
+    private CellStore store(int rows, int columns) {
+        int size = Math.multiplyExact(rows, columns);
+        if (pageFile != null) {
+            try {
+                return new PagedCellStore(pageFile, size, columns, pageMemory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open " + pageFile, e);
+            }
+        }
+        if (!offHeap) {
+            return new HeapCellStore(size);
+        }
+        if (storeFile == null) {
+            return OffHeapCellStore.allocate(size);
+        }
+        try {
+            OffHeapCellStore store = OffHeapCellStore.map(storeFile, size);
+            store.clear();
+            return store;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map " + storeFile, e);
+        }
+    }
+
+    /**
+     * Replay the journal of the file a sheet was loaded from and record later updates in it,
+     * if journaling is enabled.
+     */
+    private Sheet journaled(Sheet sheet, Path file) throws IOException {
+        if (journalSync == null) {
+            return sheet;
+        }
+        // compaction loads the snapshot on its own, with the current built-ins and store,
+        // in scratch files of its own since the edited sheet keeps using the configured ones
+        SheetBuilder snapshots = new SheetBuilder(parser, defaultExpression);
+        snapshots.builtins.putAll(builtins);
+        snapshots.executor = executor;
+        snapshots.offHeap = offHeap;
+        snapshots.storeFile = storeFile == null ? null : compactionScratch(storeFile);
+        snapshots.pageFile = pageFile == null ? null : compactionScratch(pageFile);
+        snapshots.pageMemory = pageMemory;
+        SheetJournal journal = SheetJournal.open(file, journalSync,
+                () -> snapshots.load(file.toString()));
+        journal.replay(sheet);
+        sheet.journalTo(journal);
+        return sheet;
+    }
+
+    private static Path compactionScratch(Path file) {
+        return file.resolveSibling(file.getFileName() + ".compaction");
+    }
+
+    private Sheet configure(Sheet sheet) {
+        if (compile) {
+            sheet.compileWith(new FormulaCompiler(compileThreshold));
+        }
+        return sheet;
+    }
+
     /**
      * Construct a new empty sheet with the given number of rows and columns.
      * <p>
@@ -102,9 +425,13 @@ public class SheetBuilder {
      * @param rows    Amount of rows for the new sheet.
      * @param columns Amount of columns for the sheet.
      * @return A new sheet with the appropriate built-ins and of the specified dimensions.
+     * @throws UncheckedIOException If the cells are stored in a file, see
+     *                              {@link #storeMapped(Path)} and {@link #pageTo(Path, long)},
+     *                              and it cannot be opened.
      */
     public Sheet empty(int rows, int columns) {
-        return new Sheet(parser, new HashMap<>(builtins), defaultExpression, rows, columns);
+        return configure(new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                rows, columns, store(rows, columns)));
     }
 
     /**
@@ -113,42 +440,325 @@ public class SheetBuilder {
      * The resulting sheet has as many rows as there are lines in the file,
      * and one more column than there are pipes '|' in the row with the most pipes.
      * Missing trailing columns are filled with the default expression.
+     * <p>
+     * The file is mapped into memory and read twice. A first quick pass finds
+     * the size of the sheet, then the rows are parsed straight into the sheet,
+     * so only a bounded amount of rows is held in memory besides the sheet itself.
+     * Rows are parsed concurrently, see {@link #parseWith(Executor)},
+     * and progress is reported in bytes, see {@link #reportProgress(Progress)}.
+     * Once parsed, every cell of the sheet is evaluated once in dependency order.
      *
      * @param filename The path to file to open.
      * @return The sheet decoded from the file.
      * @throws FileNotFoundException If the file is not found.
-     * @throws ParseException        If the sheet or any of its expressions fail to parse.
-     * @throws TypeError             If any of the expressions have a type error.
+     * @throws UncheckedIOException  If the file, or its journal, cannot be read.
+     * @throws ParseException        If the sheet or any of its expressions fail to parse,
+     *                               the message names the first cell that failed.
+     * @throws TypeError             If any of the expressions have a type error,
+     *                               the message names the cell that failed.
      * @stage2
      */
     public Sheet load(String filename) throws FileNotFoundException, ParseException, TypeError {
-        BufferedReader br = new BufferedReader(new FileReader(filename));
-        List<String> lines = new ArrayList<>(br.lines().toList());
-        int rows = lines.size();
-        int cols = lines
-                .stream()
-                .mapToInt(SheetBuilder::countCols)
-                .max()
-                .orElseThrow(() -> new ParseException("File had no valid"));
-
-        Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression, rows, cols);
-        List<List<Expression>> expressions = lines.stream()
-                .map(line -> List.of(line.split("\\|")))
-                .map(row -> row.stream()
-                        .map((e) -> parseOr(parser, e, defaultExpression))
-                        .toList())
-                .toList();
-
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                Expression expression = defaultExpression;
-                if (i < expressions.size() && j < expressions.get(i).size()) {
-                    expression = expressions.get(i).get(j);
+        try (SheetText text = SheetText.open(Path.of(filename))) {
+            return journaled(load(text, false), Path.of(filename));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + filename, e);
+        }
+    }
+
+    /**
+     * Load a Sheet from a CSV file, with one row per record and one cell per field.
+     * The resulting sheet has as many rows as there are records in the file,
+     * and as many columns as there are fields in the record with the most fields.
+     * <p>
+     * Fields holding a whole number become constants. Any other field, with an
+     * optional leading '=' removed, is parsed as a formula, e.g. {@code =A0 + 1}.
+     * Fields may be enclosed in double quotes, in which case they may hold commas,
+     * doubled double quotes and new lines, see {@link Sheet#encodeCsv(java.io.Writer, boolean)}.
+     * <p>
+     * The file is loaded the same way as {@link #load(String)}: a first quick pass
+     * finds the records, then chunks of records are parsed concurrently.
+     *
+     * @param filename The path to file to open.
+     * @return The sheet decoded from the file.
+     * @throws FileNotFoundException If the file is not found.
+     * @throws UncheckedIOException  If the file cannot be read.
+     * @throws ParseException        If the file has no records or any of its fields fail to parse,
+     *                               the message names the first cell that failed.
+     * @throws TypeError             If any of the expressions have a type error,
+     *                               the message names the cell that failed.
+     */
+    public Sheet loadCsv(String filename) throws FileNotFoundException, ParseException, TypeError {
+        try (SheetText text = SheetText.open(Path.of(filename))) {
+            return load(text, true);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + filename, e);
+        }
+    }
+
+    private static void scan(SheetText text, boolean csv, SheetText.Lines lines) {
+        if (csv) {
+            text.scanCsv(0, lines);
+        } else {
+            text.scan(0, lines);
+        }
+    }
+
+    private Sheet load(SheetText text, boolean csv) throws ParseException, TypeError {
+        int[] size = new int[2];
+        scan(text, csv, (start, end, pipes) -> {
+            size[0]++;
+            size[1] = Math.max(size[1], pipes + 1);
+            return true;
+        });
+        if (size[0] == 0) {
+            throw new ParseException("File had no valid");
+        }
+        int rows = size[0];
+        int columns = size[1];
+        Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                rows, columns, store(rows, columns));
+
+        // parse chunks of rows concurrently, applying them to the sheet in file order
+        Deque<Chunk> parsing = new ArrayDeque<>();
+        List<String> lines = new ArrayList<>(CHUNK_ROWS);
+        int[] read = {0};
+        try {
+            scan(text, csv, (start, end, pipes) -> {
+                lines.add(text.line(start, end));
+                if (lines.size() == CHUNK_ROWS) {
+                    parsing.add(submit(lines, read[0], end, csv));
+                    read[0] += lines.size();
+                    lines.clear();
+                    if (parsing.size() >= CHUNKS_IN_FLIGHT) {
+                        apply(sheet, parsing.poll(), text.size());
+                    }
                 }
-                sheet.update(new CellLocation(i, j), expression);
+                return true;
+            });
+            if (!lines.isEmpty()) {
+                parsing.add(submit(lines, read[0], text.size(), csv));
+            }
+            while (!parsing.isEmpty()) {
+                apply(sheet, parsing.poll(), text.size());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ParseException parseException) {
+                throw parseException;
             }
+            throw e;
+        }
+
+        sheet.restoredFormulas();
+        sheet.recalculateAll();
+        return configure(sheet);
+    }
+
+    /**
+     * Open a Sheet from file, parsing its rows only when they are first needed.
+     * The format of the file and the size of the resulting sheet are the same as
+     * {@link #load(String)}.
+     * <p>
+     * Opening a file only indexes where each of its rows starts, so the sheet is
+     * returned at once regardless of the size of the file. A row is parsed and evaluated
+     * the first time one of its cells is read through {@link Sheet#formulaAt(CellLocation)}
+     * or {@link Sheet#valueAt(CellLocation)}, or updated, and whenever a loaded cell depends on it.
+     * Encoding the sheet loads every row.
+     * <p>
+     * As rows are parsed late, errors in the file are only found when the row is loaded,
+     * reading the row then fails with an {@link IllegalStateException}.
+     * The file is kept mapped until every row is loaded, the sheet is closed,
+     * see {@link Sheet#close()}, or it is no longer used. It must not be modified in the meantime.
+     *
+     * @param filename The path to file to open.
+     * @return The sheet backed by the file.
+     * @throws FileNotFoundException If the file is not found.
+     * @throws UncheckedIOException  If the file, or its journal, cannot be read.
+     * @throws ParseException        If the file has no rows.
+     */
+    public Sheet open(String filename) throws FileNotFoundException, ParseException {
+        SheetText text;
+        try {
+            text = SheetText.openUnbounded(Path.of(filename));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + filename, e);
+        }
+        LazyRows lazy = new LazyRows(text, parser, defaultExpression);
+        if (lazy.rows() == 0) {
+            throw new ParseException("File had no valid");
+        }
+        Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                lazy.rows(), lazy.columns(), store(lazy.rows(), lazy.columns()));
+        sheet.loadLazily(lazy);
+        progress.update(text.size(), text.size());
+        try {
+            return journaled(configure(sheet), Path.of(filename));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the journal of " + filename, e);
+        }
+    }
+
+    /**
+     * Load a Sheet from a file in the binary sheet format,
+     * see {@link Sheet#encodeBinary(OutputStream)}.
+     * <p>
+     * Each distinct formula of the file is parsed once and the stored values
+     * are used as is, no cell is evaluated. If the stored values are corrupt,
+     * every cell is evaluated again instead.
+     *
+     * @param file The path to the file to open.
+     * @return The sheet decoded from the file.
+     * @throws IOException    If the file cannot be read, is not a binary sheet file,
+     *                        or its formulas are corrupt.
+     * @throws ParseException If any formula of the file fails to parse.
+     * @throws TypeError      If the values had to be evaluated again and any of
+     *                        the expressions have a type error.
+     */
+    public Sheet loadBinary(Path file) throws IOException, ParseException, TypeError {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            return SheetFile.read(in, parser, (rows, columns) -> configure(new Sheet(parser,
+                    new HashMap<>(builtins), defaultExpression, rows, columns, store(rows, columns))));
         }
-        return sheet;
     }
 
+    /**
+     * Load a Sheet saved in the chunked sheet format, see {@link Sheet#saveChunked(Path)}.
+     * <p>
+     * Blocks of rows are read and parsed concurrently, see {@link #parseWith(Executor)},
+     * and progress is reported in blocks, see {@link #reportProgress(Progress)}.
+     * Once parsed, every cell of the sheet is evaluated once in dependency order.
+     * Saving the sheet back to the same file only writes the blocks that changed.
+     *
+     * @param file The path to the index file of the chunked sheet.
+     * @return The sheet decoded from the file.
+     * @throws IOException    If the file cannot be read or is not a chunked sheet file.
+     * @throws ParseException If any of its expressions fail to parse,
+     *                        the message names the first cell that failed.
+     * @throws TypeError      If any of the expressions have a type error,
+     *                        the message names the cell that failed.
+     */
+    public Sheet loadChunked(Path file) throws IOException, ParseException, TypeError {
+        ChunkedSheetFile chunked = ChunkedSheetFile.open(file);
+        int rows = chunked.rows();
+        int columns = chunked.columns();
+        Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                rows, columns, store(rows, columns));
+
+        Deque<Chunk> parsing = new ArrayDeque<>();
+        try {
+            for (int block = 0; block < chunked.blocks(); block++) {
+                String[] lines = chunked.read(block).split("\n", -1);
+                int first = block * ChunkedSheetFile.BLOCK_ROWS;
+                if (lines.length != Math.min(ChunkedSheetFile.BLOCK_ROWS, rows - first)) {
+                    throw new IOException("Corrupt chunked sheet, block " + block
+                            + " has " + lines.length + " rows");
+                }
+                parsing.add(submit(List.of(lines), first, block + 1));
+                if (parsing.size() >= CHUNKS_IN_FLIGHT) {
+                    apply(sheet, parsing.poll(), chunked.blocks());
+                }
+            }
+            while (!parsing.isEmpty()) {
+                apply(sheet, parsing.poll(), chunked.blocks());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ParseException parseException) {
+                throw parseException;
+            }
+            throw e;
+        }
+
+        sheet.restoredFormulas();
+        sheet.recalculateAll();
+        sheet.savedTo(chunked);
+        return configure(sheet);
+    }
+
+    /**
+     * Load a Sheet from a compressed sheet file, see {@link Sheet#saveCompressed(Path)}.
+     * <p>
+     * Blocks of rows are decompressed and parsed concurrently, see {@link #parseWith(Executor)},
+     * and progress is reported in blocks, see {@link #reportProgress(Progress)}.
+     * Once parsed, every cell of the sheet is evaluated once in dependency order.
+     *
+     * @param file The path to the compressed sheet file.
+     * @return The sheet decoded from the file.
+     * @throws IOException    If the file cannot be read, is not a compressed sheet file or is corrupt.
+     * @throws ParseException If any of its expressions fail to parse,
+     *                        the message names the first cell that failed.
+     * @throws TypeError      If any of the expressions have a type error,
+     *                        the message names the cell that failed.
+     */
+    public Sheet loadCompressed(Path file) throws IOException, ParseException, TypeError {
+        try (CompressedSheetFile compressed = CompressedSheetFile.open(file)) {
+            int rows = compressed.rows();
+            int columns = compressed.columns();
+            Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                    rows, columns, store(rows, columns));
+
+            Deque<Chunk> parsing = new ArrayDeque<>();
+            try {
+                for (int block = 0; block < compressed.blocks(); block++) {
+                    int index = block;
+                    int first = block * CompressedSheetFile.BLOCK_ROWS;
+                    parsing.add(new Chunk(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return parseChunk(List.of(compressed.read(index)), first);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor), first, block + 1));
+                    if (parsing.size() >= CHUNKS_IN_FLIGHT) {
+                        apply(sheet, parsing.poll(), compressed.blocks());
+                    }
+                }
+                while (!parsing.isEmpty()) {
+                    apply(sheet, parsing.poll(), compressed.blocks());
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof ParseException parseException) {
+                    throw parseException;
+                }
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                throw e;
+            }
+
+            sheet.restoredFormulas();
+            sheet.recalculateAll();
+            return configure(sheet);
+        }
+    }
+
+    /**
+     * Open a Sheet from a compressed sheet file, decompressing and parsing rows
+     * only when they are first needed, the same as {@link #open(String)} for text files.
+     * <p>
+     * Only the index of the file is read up front. The first time a row is needed,
+     * its whole block is decompressed, and the most recently used blocks are kept for the
+     * rows that follow. The file is kept open until every row is loaded or the sheet is closed,
+     * see {@link Sheet#close()}, or else once the sheet is no longer reachable.
+     * Errors in a block are only found when one of its rows is loaded, reading the row then
+     * fails with an {@link IllegalStateException} or an {@link UncheckedIOException}.
+     *
+     * @param file The path to the compressed sheet file.
+     * @return The sheet backed by the file.
+     * @throws IOException If the file cannot be read or is not a compressed sheet file.
+     */
+    public Sheet openCompressed(Path file) throws IOException {
+        CompressedSheetFile compressed = CompressedSheetFile.open(file);
+        LazyRows lazy = new LazyRows(compressed, parser, defaultExpression);
+        Sheet sheet = new Sheet(parser, new HashMap<>(builtins), defaultExpression,
+                lazy.rows(), lazy.columns(), store(lazy.rows(), lazy.columns()));
+        sheet.loadLazily(lazy);
+        progress.update(compressed.blocks(), compressed.blocks());
+        return configure(sheet);
+    }
 }
\ No newline at end of file
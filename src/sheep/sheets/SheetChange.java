@@ -0,0 +1,115 @@
+package sheep.sheets;
+
+import java.util.BitSet;
+
+/**
+ * The cells whose formula or value was changed by a committed update of a sheet.
+ * <p>
+ * Cells are kept in a bit set by cell index ({@code row * columns + column}),
+ * so a change to a long range of cells, e.g. a fill, takes a bit per cell
+ * and can be walked in order without allocating a location per cell.
+ */
+public final class SheetChange {
+    private final int columns;
+    private final BitSet cells;
+
+    /**
+     * Receives the changed cells, see {@link #forEach(Cells)}.
+     */
+    @FunctionalInterface
+    public interface Cells {
+        /**
+         * Receive a changed cell.
+         *
+         * @param row    The row of the cell.
+         * @param column The column of the cell.
+         */
+        void cell(int row, int column);
+    }
+
+    /**
+     * Create a change of the given cells.
+     *
+     * @param columns Amount of columns of the sheet.
+     * @param cells   The indexes of the changed cells, owned by the change from now on.
+     */
+    SheetChange(int columns, BitSet cells) {
+        this.columns = columns;
+        this.cells = cells;
+    }
+
+    /**
+     * Whether the cell at the given row and column changed.
+     */
+    public boolean contains(int row, int column) {
+        return cells.get(row * columns + column);
+    }
+
+    /**
+     * Amount of changed cells.
+     */
+    public int size() {
+        return cells.cardinality();
+    }
+
+    /**
+     * The first row with a changed cell, or -1 if no cell changed.
+     */
+    public int firstRow() {
+        int first = cells.nextSetBit(0);
+        return first < 0 ? -1 : first / columns;
+    }
+
+    /**
+     * The last row with a changed cell, or -1 if no cell changed.
+     */
+    public int lastRow() {
+        int last = cells.length() - 1;
+        return last < 0 ? -1 : last / columns;
+    }
+
+    /**
+     * The changed cells by cell index ({@code row * columns + column}).
+     *
+     * @return A copy of the changed cells.
+     */
+    public BitSet cells() {
+        return (BitSet) cells.clone();
+    }
+
+    /**
+     * Combine this change with a later change of the same sheet,
+     * e.g. to handle the changes of several updates at once.
+     *
+     * @param other Another change of the same sheet.
+     * @return The cells changed by either change.
+     */
+    public SheetChange merge(SheetChange other) {
+        BitSet merged = (BitSet) cells.clone();
+        merged.or(other.cells);
+        return new SheetChange(columns, merged);
+    }
+
+    /**
+     * Visit every changed cell in row major order.
+     *
+     * @param visitor Receives each changed cell.
+     */
+    public void forEach(Cells visitor) {
+        for (int index = cells.nextSetBit(0); index >= 0; index = cells.nextSetBit(index + 1)) {
+            visitor.cell(index / columns, index % columns);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        forEach((row, column) -> {
+            if (result.length() > 1) {
+                result.append(", ");
+            }
+            result.append(new CellLocation(row, column));
+        });
+        return result.append("]").toString();
+    }
+}
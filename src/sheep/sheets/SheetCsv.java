@@ -0,0 +1,98 @@
+package sheep.sheets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fields of CSV records, as described by RFC 4180.
+ * <p>
+ * Fields are separated by commas. A field holding a comma, a double quote or a new line
+ * is enclosed in double quotes, and double quotes within it are doubled.
+ */
+final class SheetCsv {
+    private SheetCsv() {
+    }
+
+    /**
+     * Split a record into its fields, removing quotes.
+     *
+     * @param record A record of a CSV file, without the new line ending it.
+     * @return The fields of the record.
+     */
+    static String[] fields(String record) {
+        if (record.indexOf('"') < 0) {
+            return record.split(",", -1);
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Append a field to a record, quoting it if needed.
+     *
+     * @param record The record being built.
+     * @param field  The field to append.
+     */
+    static void append(StringBuilder record, String field) {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            record.append(field);
+            return;
+        }
+        record.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                record.append('"');
+            }
+            record.append(c);
+        }
+        record.append('"');
+    }
+
+    /**
+     * Whether a field holds a whole number that fits in a long, without signs other than
+     * a leading minus, as written by {@link Long#toString(long)}.
+     */
+    static boolean isNumber(String field) {
+        int start = field.length() > 1 && field.charAt(0) == '-' ? 1 : 0;
+        // longer numbers may overflow, they are left to the parser
+        if (field.isEmpty() || field.length() - start > 18) {
+            return false;
+        }
+        for (int i = start; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
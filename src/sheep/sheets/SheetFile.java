@@ -0,0 +1,286 @@
+package sheep.sheets;
+
+import sheep.expression.Expression;
+import sheep.expression.TypeError;
+import sheep.parsing.ParseException;
+import sheep.parsing.Parser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes sheets in the binary sheet format.
+ * <p>
+ * Unlike the text format of {@link Sheet#encode()}, the binary format stores
+ * the computed value of every cell, so a sheet is opened without evaluating
+ * any formula. Each distinct formula is stored, and parsed, only once:
+ * the dictionary holds one entry for each formula handle of the sheet
+ * (see {@link FormulaTable}), equal formulas share an entry and cells filled
+ * from a formula template (see {@link FormulaTemplate}) share a single entry
+ * for their template. All numbers are big-endian.
+ * <pre>
+ * header      "SHEEPBIN", int version, int rows, int columns
+ * dictionary  int entries, then for each entry
+ *             byte 0, string formula
+ *             or byte 1, string formula, int origin row, int origin column (a template)
+ * formulas    int id for every cell in row order, 0 is the default expression
+ *             and entry i of the dictionary has id i + 1
+ * checksum    long CRC32C of the above
+ * values      for every cell in row order, byte kind (see {@link CellValues}),
+ *             followed by a long if the kind is a number,
+ *             or for any other expression by the int id of the formula entry
+ *             it is equal to, e.g. an unknown reference evaluates to itself,
+ *             or 0 if there is none
+ * checksum    long CRC32C of the values
+ * </pre>
+ * Strings are stored as an int byte length followed by their UTF-8 bytes.
+ * Values are never parsed: other expressions are shared with the dictionary,
+ * and cells whose value is not in the dictionary are evaluated again once loaded.
+ * If the checksum of the values does not match, the formulas are loaded
+ * and every cell is evaluated again. The values of version 1 files were stored
+ * as text, every cell of those is evaluated again as well.
+ */
+final class SheetFile {
+    private static final byte[] MAGIC = "SHEEPBIN".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int TEXT_VALUES_VERSION = 1;
+    private static final byte FORMULA = 0;
+    private static final byte TEMPLATE = 1;
+
+    private SheetFile() {
+    }
+
+    /**
+     * Whether the given bytes start a binary sheet file.
+     *
+     * @param start The first bytes of a file.
+     * @return True if the bytes start with the binary sheet header.
+     */
+    static boolean isBinary(byte[] start) {
+        return start.length >= MAGIC.length
+                && Arrays.equals(start, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Write a sheet in the binary format.
+     *
+     * @param sheet The sheet to write.
+     * @param out   The stream to write to, flushed but not closed.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void write(Sheet sheet, OutputStream out) throws IOException {
+        CRC32C checksum = new CRC32C();
+        DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(out, checksum), 1 << 16));
+        int rows = sheet.getRows();
+        int columns = sheet.getColumns();
+        CellValues values = sheet.values();
+        CellStore store = values.store();
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(rows);
+        data.writeInt(columns);
+
+        // one entry for each formula handle, the default expression is id 0
+        int[] ids = new int[16];
+        List<Expression> entries = new ArrayList<>();
+        int size = store.size();
+        for (int index = 0; index < size; index++) {
+            int handle = store.formula(index);
+            if (handle >= ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(handle + 1, ids.length * 2));
+            }
+            if (handle != 0 && ids[handle] == 0) {
+                entries.add(sheet.formula(index));
+                ids[handle] = entries.size();
+            }
+        }
+        // other values are written as the plain formula entry they are equal to
+        Map<Object, Integer> plain = new HashMap<>();
+        data.writeInt(entries.size());
+        for (int id = 1; id <= entries.size(); id++) {
+            Expression entry = entries.get(id - 1);
+            Optional<FormulaTemplate> template = FormulaTemplate.of(entry);
+            if (template.isPresent()) {
+                data.writeByte(TEMPLATE);
+                writeString(data, template.get().source().render());
+                data.writeInt(template.get().originRow());
+                data.writeInt(template.get().originColumn());
+            } else {
+                data.writeByte(FORMULA);
+                writeString(data, entry.render());
+                plain.put(FormulaTable.key(entry), id);
+            }
+        }
+        for (int index = 0; index < size; index++) {
+            data.writeInt(ids[store.formula(index)]);
+        }
+        data.flush();
+        data.writeLong(checksum.getValue());
+        data.flush();
+
+        checksum.reset();
+        for (int index = 0; index < size; index++) {
+            byte kind = values.kind(index);
+            data.writeByte(kind);
+            if (kind == CellValues.NUMBER) {
+                data.writeLong(values.number(index));
+            } else if (kind == CellValues.OTHER) {
+                data.writeInt(plain.getOrDefault(FormulaTable.key(values.get(index)), 0));
+            }
+        }
+        data.flush();
+        data.writeLong(checksum.getValue());
+        data.flush();
+    }
+
+    /**
+     * Read a sheet in the binary format.
+     *
+     * @param in     The stream to read from, not closed.
+     * @param parser The parser used for the formulas of the dictionary.
+     * @param create Creates an empty sheet with the given rows and columns.
+     * @return The sheet read from the stream.
+     * @throws IOException    If the stream cannot be read, is not a binary sheet file,
+     *                        or its formulas are corrupt.
+     * @throws ParseException If a formula of the dictionary fails to parse.
+     * @throws TypeError      If the values are corrupt and evaluating a cell
+     *                        results in a TypeError.
+     */
+    static Sheet read(InputStream in, Parser parser,
+                      BiFunction<Integer, Integer, Sheet> create)
+            throws IOException, ParseException, TypeError {
+        CRC32C checksum = new CRC32C();
+        DataInputStream data = new DataInputStream(new CheckedInputStream(in, checksum));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!isBinary(magic)) {
+            throw new IOException("Not a binary sheet file");
+        }
+        int version = data.readInt();
+        if (version != VERSION && version != TEXT_VALUES_VERSION) {
+            throw new IOException("Unsupported binary sheet version " + version);
+        }
+        int rows = data.readInt();
+        int columns = data.readInt();
+
+        Object[] entries = new Object[data.readInt() + 1];
+        for (int id = 1; id < entries.length; id++) {
+            byte type = data.readByte();
+            String source = readString(data);
+            Expression formula;
+            try {
+                formula = parser.parse(source);
+            } catch (ParseException e) {
+                throw new ParseException("Unable to parse formula " + id + ": " + source);
+            }
+            entries[id] = type == TEMPLATE
+                    ? new FormulaTemplate(formula, data.readInt(), data.readInt())
+                    : formula;
+        }
+
+        Sheet sheet = create.apply(rows, columns);
+        // the handle of each entry once it is restored into its first cell
+        int[] handles = new int[entries.length];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int id = data.readInt();
+                if (id < 0 || id >= entries.length) {
+                    throw new IOException("Corrupt sheet file, unknown formula " + id);
+                }
+                int index = sheet.values().index(row, column);
+                if (id == 0) {
+                    continue;
+                }
+                if (handles[id] != 0) {
+                    sheet.restoreFormula(index, handles[id]);
+                } else {
+                    Object entry = entries[id];
+                    handles[id] = sheet.restoreFormula(index,
+                            entry instanceof FormulaTemplate template
+                                    ? template.instantiate(row, column) : (Expression) entry);
+                }
+            }
+        }
+        long expected = checksum.getValue();
+        if (data.readLong() != expected) {
+            throw new IOException("Corrupt sheet file, formula checksum mismatch");
+        }
+        sheet.restoredFormulas();
+        if (version == TEXT_VALUES_VERSION) {
+            sheet.recalculateAll();
+            return sheet;
+        }
+
+        checksum.reset();
+        CellValues values = sheet.values();
+        IntStream.Builder unknown = IntStream.builder();
+        boolean valid = true;
+        try {
+            for (int index = 0; index < values.store().size(); index++) {
+                byte kind = data.readByte();
+                if (kind == CellValues.NUMBER) {
+                    values.setNumber(index, data.readLong());
+                } else if (kind == CellValues.OTHER) {
+                    int id = data.readInt();
+                    if (id == 0) {
+                        unknown.add(index);
+                    } else if (id > 0 && id < entries.length && entries[id] instanceof Expression value) {
+                        values.set(index, value);
+                    } else {
+                        valid = false;
+                        break;
+                    }
+                } else if (kind != CellValues.EMPTY) {
+                    valid = false;
+                    break;
+                }
+            }
+            expected = checksum.getValue();
+            valid = valid && data.readLong() == expected;
+        } catch (IOException e) {
+            valid = false;
+        }
+        if (!valid) {
+            sheet.recalculateAll();
+        } else {
+            sheet.evaluateRestored(unknown.build().toArray());
+        }
+        return sheet;
+    }
+
+    private static void writeString(DataOutputStream data, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt sheet file, negative string length");
+        }
+        byte[] bytes = data.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Corrupt sheet file, truncated string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,385 @@
+package sheep.sheets;
+
+import sheep.expression.TypeError;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of the updates made to a sheet loaded from a snapshot file.
+ * <p>
+ * Every accepted update is appended as a record to a journal segment next to the snapshot,
+ * named after the snapshot followed by ".journal." and a sequence number. Appending only copies
+ * the record into a buffer: a background thread shared by all journals writes the buffered records
+ * in one group and forces them to disk according to a {@link JournalSync} policy.
+ * <pre>
+ * record  byte kind, int row, int column,
+ *         [int last row, int last column, for a fill],
+ *         int length, the formula in UTF-8, int CRC32C of the above
+ * </pre>
+ * Each record holds the whole formula it stores, so replaying a record that is already part of
+ * the snapshot leaves the sheet unchanged. Replay stops at the first incomplete or corrupt record,
+ * which is the record being written when the application stopped.
+ * <p>
+ * Once a segment grows past {@link #COMPACT_BYTES} a new segment is started, and the closed segments
+ * are replayed over the snapshot in a separate sheet on a background thread. That sheet is written as
+ * the new snapshot, atomically replacing the old one, before the closed segments are deleted.
+ * The sheet being edited is never read by the background threads.
+ */
+final class SheetJournal {
+    /**
+     * Size of a segment after which the journal is compacted into the snapshot.
+     */
+    static final long COMPACT_BYTES = 4 << 20;
+
+    private static final byte UPDATE = 1;
+    private static final byte FILL = 2;
+    private static final long PERIOD_MILLIS = 1000;
+    // longest formula read back, anything longer is a corrupt length
+    private static final int MAX_FORMULA = 1 << 24;
+
+    private static final ScheduledExecutorService WRITER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sheep-journal-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final Executor COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheep-journal-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final Path snapshot;
+    private final JournalSync sync;
+    private final Callable<Sheet> loadSnapshot;
+
+    // guarded by this, records appended but not yet handed to the writer
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final CRC32C checksum = new CRC32C();
+    private boolean scheduled;
+
+    // only used on the writer thread
+    private long sequence;
+    private FileChannel channel;
+    private CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+    private volatile IOException failure;
+
+    private SheetJournal(Path snapshot, JournalSync sync, Callable<Sheet> loadSnapshot, long sequence) {
+        this.snapshot = snapshot;
+        this.sync = sync;
+        this.loadSnapshot = loadSnapshot;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Open the journal of a snapshot file, starting a new segment after any existing one.
+     * Existing segments are kept until compacted, see {@link #replay(Sheet)}.
+     *
+     * @param snapshot     The snapshot file in the text format, see {@link Sheet#encode()}.
+     * @param sync         When records are forced to disk.
+     * @param loadSnapshot Loads the current snapshot into a new sheet without a journal,
+     *                     used by compaction.
+     * @return The journal.
+     * @throws IOException If the new segment cannot be created.
+     */
+    static SheetJournal open(Path snapshot, JournalSync sync, Callable<Sheet> loadSnapshot)
+            throws IOException {
+        List<Path> existing = segments(snapshot, Long.MAX_VALUE);
+        long sequence = existing.isEmpty() ? 0 : sequence(existing.get(existing.size() - 1)) + 1;
+        SheetJournal journal = new SheetJournal(snapshot, sync, loadSnapshot, sequence);
+        journal.channel = FileChannel.open(journal.segment(sequence), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return journal;
+    }
+
+    private Path segment(long sequence) {
+        return snapshot.resolveSibling(snapshot.getFileName() + ".journal." + sequence);
+    }
+
+    private static long sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * The segments of the journal of a snapshot up to the given sequence number, in order.
+     */
+    private static List<Path> segments(Path snapshot, long last) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        Path directory = snapshot.toAbsolutePath().getParent();
+        String prefix = snapshot.getFileName() + ".journal.";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)
+                        && sequence(file) <= last) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(SheetJournal::sequence));
+        return segments;
+    }
+
+    /**
+     * Replay the segments written before this journal was opened over a sheet,
+     * which holds the snapshot.
+     *
+     * @param sheet The sheet loaded from the snapshot.
+     * @throws IOException If a segment cannot be read.
+     */
+    void replay(Sheet sheet) throws IOException {
+        for (Path segment : segments(snapshot, sequence - 1)) {
+            replay(segment, sheet);
+        }
+    }
+
+    private static void replay(Path segment, Sheet sheet) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment), 1 << 16)) {
+            DataInputStream data = new DataInputStream(in);
+            CRC32C checksum = new CRC32C();
+            byte[] header = new byte[17];
+            while (true) {
+                int kind = in.read();
+                if (kind != UPDATE && kind != FILL) {
+                    return; // end of the journal, or a torn record
+                }
+                header[0] = (byte) kind;
+                int headerLength = kind == FILL ? 17 : 9;
+                byte[] formula;
+                try {
+                    data.readFully(header, 1, headerLength - 1);
+                    int length = data.readInt();
+                    if (length < 0 || length > MAX_FORMULA) {
+                        return;
+                    }
+                    formula = new byte[length];
+                    data.readFully(formula);
+                    checksum.reset();
+                    checksum.update(header, 0, headerLength);
+                    checksum.update(ByteBuffer.allocate(4).putInt(0, length));
+                    checksum.update(formula);
+                    if (data.readInt() != (int) checksum.getValue()) {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+
+                ByteBuffer fields = ByteBuffer.wrap(header, 1, headerLength - 1);
+                int row = fields.getInt();
+                int column = fields.getInt();
+                String text = new String(formula, StandardCharsets.UTF_8);
+                if (row < 0 || row >= sheet.getRows() || column < 0 || column >= sheet.getColumns()
+                        || !sheet.update(row, column, text).isSuccess()) {
+                    continue; // does not apply to this sheet
+                }
+                if (kind == FILL) {
+                    int lastRow = fields.getInt();
+                    int lastColumn = fields.getInt();
+                    try {
+                        if (lastColumn == column) {
+                            sheet.fillDown(new CellLocation(row, column), lastRow);
+                        } else {
+                            sheet.fillRight(new CellLocation(row, column), lastColumn);
+                        }
+                    } catch (TypeError | IllegalArgumentException e) {
+                        // the fill failed the same way when it was made
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Append an update of a cell to its formula.
+     */
+    void update(int row, int column, String formula) {
+        append(UPDATE, row, column, 0, 0, formula);
+    }
+
+    /**
+     * Append a fill of a formula from the source cell to the given last row and column.
+     */
+    void fill(int row, int column, int lastRow, int lastColumn, String formula) {
+        append(FILL, row, column, lastRow, lastColumn, formula);
+    }
+
+    private synchronized void append(byte kind, int row, int column, int lastRow, int lastColumn,
+                                     String formula) {
+        byte[] text = formula.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(17 + 4 + text.length + 4);
+        record.put(kind).putInt(row).putInt(column);
+        if (kind == FILL) {
+            record.putInt(lastRow).putInt(lastColumn);
+        }
+        record.putInt(text.length).put(text);
+        checksum.reset();
+        checksum.update(record.array(), 0, record.position());
+        record.putInt((int) checksum.getValue());
+        pending.write(record.array(), 0, record.position());
+
+        if (!scheduled) {
+            scheduled = true;
+            if (sync == JournalSync.PERIODIC) {
+                WRITER.schedule(() -> write(false), PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                WRITER.execute(() -> write(false));
+            }
+        }
+    }
+
+    /**
+     * Write the pending records as one group, on the writer thread.
+     */
+    private void write(boolean force) {
+        byte[] group;
+        synchronized (this) {
+            group = pending.toByteArray();
+            pending.reset();
+            scheduled = false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(group);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force || (sync != JournalSync.NEVER && group.length > 0)) {
+                channel.force(false);
+            }
+            if (channel.size() >= COMPACT_BYTES && compaction.isDone()) {
+                rotate();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Start a new segment and compact the closed ones in the background, on the writer thread.
+     */
+    private void rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        long last = sequence++;
+        channel = FileChannel.open(segment(sequence), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compaction = CompletableFuture.runAsync(() -> {
+            try {
+                compact(last);
+            } catch (Exception e) {
+                // the segments are kept, and compacted with the next ones
+                throw new CompletionException(e);
+            }
+        }, COMPACTOR);
+    }
+
+    private void compact(long last) throws Exception {
+        Sheet sheet = loadSnapshot.call();
+        List<Path> compacted = segments(snapshot, last);
+        for (Path segment : compacted) {
+            replay(segment, sheet);
+        }
+        Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            sheet.encode(out);
+            out.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        for (Path segment : compacted) {
+            Files.delete(segment);
+        }
+    }
+
+    /**
+     * Write and force every record appended so far, waiting until they are on disk.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    void sync() throws IOException {
+        CompletableFuture.runAsync(() -> write(true), WRITER).join();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Compact the journal into the snapshot now, waiting until it is done.
+     *
+     * @throws IOException If the journal could not be written or compacted.
+     */
+    void compact() throws IOException {
+        CompletableFuture<Void> done = CompletableFuture.supplyAsync(() -> {
+            write(true);
+            if (failure == null) {
+                try {
+                    compaction.exceptionally(e -> null).join();
+                    rotate();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            return compaction;
+        }, WRITER).thenCompose(compaction -> compaction);
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException nested
+                    ? nested.getCause() : e.getCause();
+            throw cause instanceof IOException io ? io : new IOException("Unable to compact journal", cause);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write and force every record appended so far, wait for a running compaction,
+     * then close the current segment. Records appended later are not written.
+     *
+     * @throws IOException If the journal could not be written or closed.
+     */
+    void close() throws IOException {
+        CompletableFuture.runAsync(() -> {
+            write(true);
+            compaction.exceptionally(e -> null).join();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }, WRITER).join();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
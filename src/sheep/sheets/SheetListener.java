@@ -0,0 +1,17 @@
+package sheep.sheets;
+
+/**
+ * Receives the cells changed by each update of a sheet,
+ * see {@link Sheet#addListener(SheetListener)}.
+ */
+@FunctionalInterface
+public interface SheetListener {
+    /**
+     * Called after an update, fill or batch of updates is committed to the sheet,
+     * on the thread that updated it. Not called for updates that failed,
+     * as those leave the sheet unchanged.
+     *
+     * @param change The cells whose formula or value changed.
+     */
+    void changed(SheetChange change);
+}
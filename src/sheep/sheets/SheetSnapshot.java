@@ -0,0 +1,162 @@
+package sheep.sheets;
+
+import sheep.core.ViewElement;
+import sheep.expression.Expression;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of the formulas and values of a {@link Sheet} at one point in time,
+ * see {@link Sheet#snapshot()}.
+ * <p>
+ * Expressions are immutable, so a snapshot shares them with the sheet and only copies
+ * a reference, a number and a kind per cell. It can then be read, e.g. to save it,
+ * from any thread while the sheet carries on being updated.
+ */
+public final class SheetSnapshot implements RangeView {
+    private final int rows;
+    private final int columns;
+    private final Expression defaultExpression;
+    // null for cells holding the default expression
+    private final Expression[] formulas;
+    private final byte[] kinds;
+    private final long[] numbers;
+    private final Map<Integer, Expression> others = new HashMap<>();
+
+    /**
+     * Copy the formulas and values of a sheet.
+     *
+     * @requires every row of the sheet is loaded
+     */
+    SheetSnapshot(Sheet sheet, Expression defaultExpression, CellValues values) {
+        this.rows = sheet.getRows();
+        this.columns = sheet.getColumns();
+        this.defaultExpression = defaultExpression;
+        CellStore store = values.store();
+        int size = store.size();
+        formulas = new Expression[size];
+        kinds = new byte[size];
+        numbers = new long[size];
+        for (int index = 0; index < size; index++) {
+            if (store.formula(index) != 0) {
+                // template instances are placed in their own cell
+                formulas[index] = sheet.formula(index);
+            }
+            kinds[index] = store.kind(index);
+            if (kinds[index] == CellValues.NUMBER) {
+                numbers[index] = store.number(index);
+            } else if (kinds[index] == CellValues.OTHER) {
+                others.put(index, values.get(index));
+            }
+        }
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumns() {
+        return columns;
+    }
+
+    private Expression formula(int index) {
+        return formulas[index] == null ? defaultExpression : formulas[index];
+    }
+
+    private String renderValue(int index) {
+        return switch (kinds[index]) {
+            case CellValues.NUMBER -> Long.toString(numbers[index]);
+            case CellValues.OTHER -> others.get(index).render();
+            default -> defaultExpression.render();
+        };
+    }
+
+    /**
+     * The value of a cell when the snapshot was taken, see {@link Sheet#valueAt(int, int)}.
+     */
+    @Override
+    public ViewElement valueAt(int row, int column) {
+        return new ViewElement(renderValue(row * columns + column), "white", "black");
+    }
+
+    /**
+     * The formula of a cell when the snapshot was taken, see {@link Sheet#formulaAt(int, int)}.
+     */
+    @Override
+    public ViewElement formulaAt(int row, int column) {
+        return new ViewElement(formula(row * columns + column).render(), "white", "black");
+    }
+
+    /**
+     * The values of a range of cells when the snapshot was taken,
+     * see {@link Sheet#readValues(int, int, int, int, Order, long[], byte[], int)}.
+     */
+    @Override
+    public void readValues(int row, int column, int rows, int columns, Order order,
+                           long[] numbers, byte[] kinds, int offset) {
+        CellValues.checkRange(this, row, column, rows, columns,
+                Math.min(numbers.length, kinds.length), offset);
+        int step = order.position(0, 1, rows, columns);
+        for (int r = 0; r < rows; r++) {
+            int index = (row + r) * this.columns + column;
+            int position = offset + order.position(r, 0, rows, columns);
+            for (int c = 0; c < columns; c++, index++, position += step) {
+                kinds[position] = this.kinds[index];
+                numbers[position] = this.numbers[index];
+            }
+        }
+    }
+
+    /**
+     * The rendered values of a range of cells when the snapshot was taken,
+     * see {@link Sheet#readRendered(int, int, int, int, Order, String[], int)}.
+     */
+    @Override
+    public void readRendered(int row, int column, int rows, int columns, Order order,
+                             String[] rendered, int offset) {
+        CellValues.checkRange(this, row, column, rows, columns, rendered.length, offset);
+        int step = order.position(0, 1, rows, columns);
+        for (int r = 0; r < rows; r++) {
+            int index = (row + r) * this.columns + column;
+            int position = offset + order.position(r, 0, rows, columns);
+            for (int c = 0; c < columns; c++, index++, position += step) {
+                rendered[position] = renderValue(index);
+            }
+        }
+    }
+
+    /**
+     * The string representation of the sheet when the snapshot was taken,
+     * the same as {@link Sheet#encode()}.
+     */
+    @Override
+    public String encode() {
+        StringWriter out = new StringWriter();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never thrown by a StringWriter
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the string representation of the sheet when the snapshot was taken,
+     * the same as {@link Sheet#encode(Writer)}.
+     *
+     * @param out The writer to write to, it is flushed but not closed.
+     * @throws IOException If the writer fails.
+     */
+    public void encode(Writer out) throws IOException {
+        String empty = defaultExpression.render();
+        Sheet.writeRows(out, columns, 0, rows,
+                index -> formulas[index] == null ? empty : formulas[index].render());
+    }
+}
@@ -0,0 +1,214 @@
+package sheep.sheets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A sheet file in the text format of {@link Sheet#encode()}, or in CSV, mapped into memory.
+ * <p>
+ * The file is read directly from the mapping, lines are only decoded into
+ * strings when asked for, so reading a file does not hold more than one line
+ * in memory. Lines end at a new line, an optional carriage return before it
+ * is not part of the line, and a new line at the end of the file does not
+ * start another line, the same as {@link java.io.BufferedReader#lines()}.
+ * <p>
+ * A mapped buffer holds at most 2 GB, so the file is mapped in windows of
+ * {@link #WINDOW_BYTES} bytes, lines may span windows.
+ * The file itself is closed as soon as it is mapped. The mapping is released
+ * once it is no longer reachable, after {@link #close()} for files from {@link #open(Path)}.
+ */
+final class SheetText implements AutoCloseable {
+    /**
+     * Amount of bytes mapped by each window, the last window may map less.
+     */
+    static final long WINDOW_BYTES = 1L << 30;
+
+    private static final int WINDOW_SHIFT = Long.numberOfTrailingZeros(WINDOW_BYTES);
+    private static final long WINDOW_MASK = WINDOW_BYTES - 1;
+
+    private final boolean closeable;
+    private final long size;
+    private ByteBuffer[] windows;
+
+    /**
+     * Receives the lines of a file, see {@link #scan(long, Lines)}.
+     */
+    @FunctionalInterface
+    interface Lines {
+        /**
+         * Receive a line of the file.
+         *
+         * @param start Offset of the first byte of the line.
+         * @param end   Offset after the last byte of the line.
+         * @param pipes Amount of pipes in the line, or of commas outside of quotes for a CSV record,
+         *              i.e. one less than its cells.
+         * @return False to stop scanning.
+         */
+        boolean line(long start, long end, int pipes);
+    }
+
+    private SheetText(boolean closeable, long size, ByteBuffer[] windows) {
+        this.closeable = closeable;
+        this.size = size;
+        this.windows = windows;
+    }
+
+    /**
+     * Map a text sheet file.
+     *
+     * @param file The file to map.
+     * @return The mapped file, to be closed by the caller.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    static SheetText open(Path file) throws IOException {
+        return map(file, true);
+    }
+
+    /**
+     * Map a text sheet file that is released once it is no longer reachable,
+     * for files read over a long time. Closing the file has no effect.
+     *
+     * @param file The file to map.
+     * @return The mapped file.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    static SheetText openUnbounded(Path file) throws IOException {
+        return map(file, false);
+    }
+
+    private static SheetText map(Path file, boolean closeable) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer[] windows = new ByteBuffer[Math.toIntExact((size + WINDOW_MASK) >>> WINDOW_SHIFT)];
+            for (int window = 0; window < windows.length; window++) {
+                long position = window * WINDOW_BYTES;
+                windows[window] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(WINDOW_BYTES, size - position));
+            }
+            return new SheetText(closeable, size, windows);
+        }
+    }
+
+    /**
+     * Size of the file in bytes.
+     */
+    long size() {
+        return size;
+    }
+
+    private byte get(long offset) {
+        return windows[(int) (offset >>> WINDOW_SHIFT)].get((int) (offset & WINDOW_MASK));
+    }
+
+    /**
+     * The end of a line ending before the new line at the given offset,
+     * leaving out a carriage return.
+     */
+    private long end(long start, long newLine) {
+        return newLine > start && get(newLine - 1) == '\r' ? newLine - 1 : newLine;
+    }
+
+    /**
+     * Visit every line of the file from the given offset, in order.
+     *
+     * @param from  Offset of the start of the first line to visit.
+     * @param lines Receives each line.
+     */
+    void scan(long from, Lines lines) {
+        long start = from;
+        int pipes = 0;
+        for (int window = (int) (from >>> WINDOW_SHIFT); window < windows.length; window++) {
+            ByteBuffer bytes = windows[window];
+            long base = window * WINDOW_BYTES;
+            for (int j = (int) Math.max(0, from - base); j < bytes.limit(); j++) {
+                byte b = bytes.get(j);
+                if (b == '|') {
+                    pipes++;
+                } else if (b == '\n') {
+                    long i = base + j;
+                    if (!lines.line(start, end(start, i), pipes)) {
+                        return;
+                    }
+                    start = i + 1;
+                    pipes = 0;
+                }
+            }
+        }
+        if (start < size) {
+            lines.line(start, end(start, size), pipes);
+        }
+    }
+
+    /**
+     * Visit every record of a CSV file from the given offset, in order.
+     * <p>
+     * Records are separated the same way as lines, see {@link #scan(long, Lines)},
+     * except that new lines, and commas, inside double quoted fields are part of the field.
+     *
+     * @param from    Offset of the start of the first record to visit.
+     * @param records Receives each record, with its amount of commas outside of quotes.
+     */
+    void scanCsv(long from, Lines records) {
+        long start = from;
+        int commas = 0;
+        boolean quoted = false;
+        for (int window = (int) (from >>> WINDOW_SHIFT); window < windows.length; window++) {
+            ByteBuffer bytes = windows[window];
+            long base = window * WINDOW_BYTES;
+            for (int j = (int) Math.max(0, from - base); j < bytes.limit(); j++) {
+                byte b = bytes.get(j);
+                if (b == '"') {
+                    // an escaped quote "" toggles twice
+                    quoted = !quoted;
+                } else if (quoted) {
+                    continue;
+                } else if (b == ',') {
+                    commas++;
+                } else if (b == '\n') {
+                    long i = base + j;
+                    if (!records.line(start, end(start, i), commas)) {
+                        return;
+                    }
+                    start = i + 1;
+                    commas = 0;
+                }
+            }
+        }
+        if (start < size) {
+            records.line(start, end(start, size), commas);
+        }
+    }
+
+    /**
+     * Decode a line of the file.
+     *
+     * @param start Offset of the first byte of the line.
+     * @param end   Offset after the last byte of the line.
+     * @return The line decoded as UTF-8.
+     */
+    String line(long start, long end) {
+        byte[] bytes = new byte[Math.toIntExact(end - start)];
+        int copied = 0;
+        while (copied < bytes.length) {
+            long offset = start + copied;
+            ByteBuffer window = windows[(int) (offset >>> WINDOW_SHIFT)];
+            int position = (int) (offset & WINDOW_MASK);
+            int length = Math.min(bytes.length - copied, window.limit() - position);
+            window.get(position, bytes, copied, length);
+            copied += length;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        if (closeable) {
+            // mappings cannot be released explicitly, only once they are unreachable
+            windows = new ByteBuffer[0];
+        }
+    }
+}
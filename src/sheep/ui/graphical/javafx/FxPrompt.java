@@ -0,0 +1,90 @@
+package sheep.ui.graphical.javafx;
+
+import javafx.application.Platform;
+import sheep.ui.Prompt;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link Prompt} that can be used from a background thread.
+ * Every dialog of the wrapped prompt is shown on the JavaFX application thread,
+ * while the calling thread waits for the answer.
+ */
+class FxPrompt implements Prompt {
+    private final Prompt prompt;
+
+    /**
+     * Wrap a prompt that must be used on the JavaFX application thread.
+     *
+     * @param prompt The prompt showing the dialogs.
+     */
+    FxPrompt(Prompt prompt) {
+        this.prompt = prompt;
+    }
+
+    /**
+     * Run an action on the JavaFX application thread and wait for its result.
+     * Runs it directly when called on the JavaFX application thread.
+     *
+     * @param action The action to run.
+     * @return The result of the action.
+     * @throws CancellationException If the calling thread is interrupted while waiting,
+     *                               e.g. as its task was cancelled.
+     */
+    static <T> T onFxThread(Callable<T> action) {
+        FutureTask<T> task = new FutureTask<>(action);
+        if (Platform.isFxApplicationThread()) {
+            task.run();
+        } else {
+            Platform.runLater(task);
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Cancelled while waiting for the user interface");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public Optional<String> ask(String prompt) {
+        return onFxThread(() -> this.prompt.ask(prompt));
+    }
+
+    @Override
+    public Optional<String[]> askMany(String[] prompts) {
+        return onFxThread(() -> prompt.askMany(prompts));
+    }
+
+    @Override
+    public boolean askYesNo(String prompt) {
+        return onFxThread(() -> this.prompt.askYesNo(prompt));
+    }
+
+    @Override
+    public void message(String prompt) {
+        onFxThread(() -> {
+            this.prompt.message(prompt);
+            return null;
+        });
+    }
+
+    @Override
+    public String openFile() {
+        return onFxThread(prompt::openFile);
+    }
+
+    @Override
+    public String saveFile() {
+        return onFxThread(prompt::saveFile);
+    }
+}
@@ -78,7 +78,12 @@ public class JFXUI extends UI {
     @Override
     public void openWindow(SheetView view, SheetUpdate updater) throws Exception {
         System.out.println("opem window");
-        application.createWindow(view, updater);
+        if (Platform.isFxApplicationThread()) {
+            application.createWindow(view, updater);
+        } else if (!Thread.currentThread().isInterrupted()) {
+            // opened by a feature running in the background, which was not cancelled
+            Platform.runLater(() -> application.createWindow(view, updater));
+        }
     }
     protected static class MessagePrompt implements Prompt {
         Stage stage;
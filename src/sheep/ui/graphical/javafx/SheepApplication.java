@@ -1,14 +1,14 @@
 package sheep.ui.graphical.javafx;
 
 import javafx.application.Application;
-import javafx.collections.FXCollections;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.concurrent.Task;
 import javafx.collections.ListChangeListener;
-import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.control.cell.MapValueFactory;
 import javafx.scene.control.cell.TextFieldTableCell;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
@@ -18,14 +18,17 @@ import sheep.core.SheetUpdate;
 import sheep.core.SheetView;
 import sheep.core.UpdateResponse;
 import sheep.sheets.CellLocation;
+import sheep.sheets.Sheet;
 import sheep.ui.Prompt;
 import sheep.ui.UI;
 import sheep.ui.graphical.Configuration;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 import static javafx.scene.paint.Color.*;
 
@@ -34,6 +37,13 @@ import static javafx.scene.paint.Color.*;
  * @stage0
  */
 public class SheepApplication extends Application {
+    // runs menu features one at a time, off the JavaFX application thread
+    private static final ExecutorService FEATURES = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheep-feature-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     //sheetView
     SheetView view;
     //updater
@@ -42,8 +52,17 @@ public class SheepApplication extends Application {
     Map<String,Map<String,UI.Feature>> features;
     //tableview
     TableView table;
+    //rows of the tableview, read lazily from the sheetView
+    SheetRows rows;
+    //applies the updates of the sheet off the JavaFX application thread, null if not a sheet
+    SheetWorker worker;
     //stage of window
     Stage stage;
+    //progress of the running feature, hidden when idle
+    HBox statusBar;
+    Label status;
+    //the running feature, null when idle
+    Task<Void> running;
 
 
     /**
@@ -75,6 +94,18 @@ public class SheepApplication extends Application {
         innitialization();
     }
 
+    /**
+     * Stop the SheeP Application, closing the sheet shown.
+     *
+     * @throws Exception if the application fails to stop.
+     */
+    @Override
+    public void stop() throws Exception {
+        if (worker != null) {
+            worker.close(true);
+        }
+    }
+
     /**
      * Initializes the JavaFX application by setting up the main UI elements.
      *
@@ -92,7 +123,13 @@ public class SheepApplication extends Application {
         formulaTextField.setBackground(new Background(bf));
 
         // --- Table
-        table = new TableView(generateDataInMap());
+        if (worker != null) { // replacing the table of a previous sheet
+            worker.close(worker.sheet() != view);
+        }
+        worker = view instanceof Sheet sheet && updater == sheet
+                ? new SheetWorker(sheet, change -> rows.published(change)) : null;
+        rows = new SheetRows(view, worker);
+        table = new TableView(rows.rows());
 
         // Update the formula bar when a cell is selected
         updateFormulaBar(table, formulaTextField);
@@ -104,9 +141,11 @@ public class SheepApplication extends Application {
         final VBox vbox = new VBox();
         // --- Menu Bar
         MenuBar menuBar = generateMenuBar();
+        // --- Status Bar
+        statusBar = generateStatusBar();
 
         // Add elements to VBox
-        vbox.getChildren().addAll(menuBar, formulaTextField, table);
+        vbox.getChildren().addAll(menuBar, formulaTextField, table, statusBar);
         ((Group) scene.getRoot()).getChildren().addAll(vbox);
 
         stage.setScene(scene);
@@ -125,30 +164,6 @@ public class SheepApplication extends Application {
         innitialization();
     }
 
-    /**
-     * Generates a list of maps containing the data from the view.
-     * Each map represents a row in the view, with the keys being the column names and the values being the cell contents.
-     * <p>
-     * [1] based on idea from "Example 13-12 Adding Map Data to the Table"
-     *
-     * @return An observable list of maps containing the data from the view.
-     */
-    private ObservableList<Map> generateDataInMap() {
-        ObservableList<Map> allData = FXCollections.observableArrayList();
-        for (int row = 0; row < view.getRows(); row++) {
-            Map<String, String> dataRow = new HashMap<>();
-            String rowNumber = String.valueOf(row);
-            dataRow.put(" ", rowNumber);
-            for (int col = 0; col < view.getColumns(); col++) {
-                String colName = new CellLocation(0, col).toString().charAt(0) + "";
-                String cellValue = view.valueAt(row, col).getContent();
-                dataRow.put(colName, cellValue);
-            }
-            allData.add(dataRow);
-        }
-        return allData;
-    }
-
     /**
      * Updates the formula bar based on the selected cell in the table.
      * If a formula exists for the selected cell, it will be displayed in the formula bar; otherwise, the cell value will be displayed.
@@ -165,26 +180,37 @@ public class SheepApplication extends Application {
                 col = ((TablePosition<?, ?>) table.getSelectionModel().getSelectedCells().getFirst()).getColumn() - 1; // minus index column
                 row = ((TablePosition<?, ?>) table.getSelectionModel().getSelectedCells().getFirst()).getRow();
 
-                String formula = view.formulaAt(row, col).getContent();
-                String value = view.valueAt(row, col).getContent();
-                formulaTextField.setText(formula.isEmpty() ? value : formula);
+                String text = read(() -> {
+                    String formula = view.formulaAt(row, col).getContent();
+                    String value = view.valueAt(row, col).getContent();
+                    return formula.isEmpty() ? value : formula;
+                });
+                formulaTextField.setText(text == null ? SheetRows.PENDING : text);
             }
         });
     }
 
+    /**
+     * Read the sheet on the JavaFX application thread, unless the worker is updating it.
+     *
+     * @param reader Reads the sheet.
+     * @return The result of the reader, or null if the sheet is being updated.
+     */
+    private <T> T read(Supplier<T> reader) {
+        return worker == null ? reader.get() : worker.read(reader);
+    }
+
     /**
      * Generates a list of table columns for the given table view.
-     * Each column is represented by a TableColumn object, with the header text being the column name and the cell value factory being a MapValueFactory.
+     * Each column is represented by a TableColumn object, with the header text being the column name and the cell value factory
+     * reading the cell from the sheet when it is displayed, see {@link SheetRows#cell(int, int)}.
      * The cell factory is set to a {@link  CustomizedTextFieldTableCell} with a StringConverter that converts between strings and objects.
      *
-     * <p>
-     * [1] based on idea from "Example 13-12 Adding Map Data to the Table"
-     *
      * @param table The table view to generate columns for.
      * @return A list of table columns for the given table view.
      */
     private List<TableColumn> generateColumns(TableView table) {
-        Callback<TableColumn<Map, String>, TableCell<Map, String>> cellFactoryForMap = (TableColumn<Map, String> p) ->
+        Callback<TableColumn<Integer, String>, TableCell<Integer, String>> cellFactoryForRows = (TableColumn<Integer, String> p) ->
                 new CustomizedTextFieldTableCell(new StringConverter() {
                     @Override
                     public String toString(Object t) {
@@ -199,18 +225,19 @@ public class SheepApplication extends Application {
 
         // Columns
         List<TableColumn> columns = new ArrayList<>();
-        TableColumn tableIndexColumn = new TableColumn<>(" ");
-        tableIndexColumn.setCellValueFactory(new MapValueFactory<>(" "));
-        tableIndexColumn.setCellFactory(cellFactoryForMap);
+        TableColumn<Integer, String> tableIndexColumn = new TableColumn<>(" ");
+        tableIndexColumn.setCellValueFactory(data -> new ReadOnlyObjectWrapper<>(String.valueOf(data.getValue())));
+        tableIndexColumn.setCellFactory(cellFactoryForRows);
         tableIndexColumn.setResizable(false);
         tableIndexColumn.setPrefWidth(Configuration.HEADER_COLUMN_WIDTH);
         tableIndexColumn.setStyle("-fx-background-color:#f0f0f0;-fx-text-fill:grey;-fx-alignment:center;");
         columns.add(tableIndexColumn);
         for (int col = 0; col < view.getColumns(); col++) {
             String colName = new CellLocation(0, col).toString().charAt(0) + "";
-            TableColumn tableColumn = new TableColumn(colName);
-            tableColumn.setCellValueFactory(new MapValueFactory<>(colName));
-            tableColumn.setCellFactory(cellFactoryForMap);
+            TableColumn<Integer, String> tableColumn = new TableColumn<>(colName);
+            int column = col;
+            tableColumn.setCellValueFactory(data -> rows.cell(data.getValue(), column));
+            tableColumn.setCellFactory(cellFactoryForRows);
             tableColumn.setPrefWidth(Configuration.COLUMN_WIDTH);
             tableColumn.setResizable(false);
             columns.add(tableColumn);
@@ -237,7 +264,7 @@ public class SheepApplication extends Application {
 
                 item.setOnAction(actionEvent -> {
                     System.out.println(menuItem + " clicked");
-                    features.get(menuName).get(menuItem).action().perform(0, 0, prompt, view, updater);
+                    perform(features.get(menuName).get(menuItem), prompt);
                 });
                 m.getItems().add(item);
             }
@@ -246,6 +273,104 @@ public class SheepApplication extends Application {
         return menuBar;
     }
 
+    /**
+     * Generates the status bar showing the progress of a running feature,
+     * with a button to cancel it. The bar is hidden while no feature runs.
+     *
+     * @return The status bar.
+     */
+    private HBox generateStatusBar() {
+        ProgressIndicator indicator = new ProgressIndicator();
+        indicator.setPrefSize(16, 16);
+        status = new Label();
+        Button cancel = new Button("Cancel");
+        cancel.setOnAction(actionEvent -> {
+            if (running != null) {
+                running.cancel(true);
+            }
+        });
+        HBox bar = new HBox(8, indicator, status, cancel);
+        bar.setPadding(new Insets(4));
+        bar.setVisible(running != null);
+        bar.setManaged(running != null);
+        return bar;
+    }
+
+    /**
+     * Perform a menu feature on a background thread, so the window stays responsive
+     * while e.g. a large sheet is saved or opened.
+     * <p>
+     * The feature is given a snapshot of the sheet, see {@link Sheet#snapshot()},
+     * so the sheet can be edited while the feature runs. Its dialogs and updates are
+     * run on the JavaFX application thread. A new window opened by the feature
+     * replaces the current one on completion, see {@link #createWindow(SheetView, SheetUpdate)},
+     * unless the feature is cancelled first.
+     * <p>
+     * The snapshot is taken, and the updates of the feature are applied, by the
+     * {@link SheetWorker} of the sheet, in order with the edits of the table.
+     * <p>
+     * Views that are not a {@link Sheet} cannot be snapshot, their features
+     * are performed on the JavaFX application thread as before.
+     *
+     * @param feature The feature to perform.
+     * @param prompt  The prompt to show the dialogs of the feature with.
+     */
+    private void perform(UI.Feature feature, Prompt prompt) {
+        if (!(view instanceof Sheet sheet)) {
+            feature.action().perform(0, 0, prompt, view, updater);
+            return;
+        }
+        // only features that read the sheet, e.g. save or export, copy it
+        SheetView snapshot;
+        SheetUpdate target;
+        if (worker != null) {
+            SheetWorker writer = worker;
+            snapshot = new SnapshotView(sheet.getRows(), sheet.getColumns(),
+                    () -> writer.call(sheet::snapshot).join());
+            target = (row, column, input) -> writer.update(row, column, input).join();
+        } else {
+            SheetUpdate sheetUpdater = updater;
+            snapshot = new SnapshotView(sheet.getRows(), sheet.getColumns(),
+                    () -> FxPrompt.onFxThread(sheet::snapshot));
+            target = (row, column, input) -> FxPrompt.onFxThread(() -> {
+                UpdateResponse response = sheetUpdater.update(row, column, input);
+                if (updater == sheetUpdater) { // still showing the updated sheet
+                    rows.refresh();
+                }
+                return response;
+            });
+        }
+        Task<Void> task = new Task<>() {
+            @Override
+            protected Void call() throws Exception {
+                feature.action().perform(0, 0, new FxPrompt(prompt), snapshot, target);
+                return null;
+            }
+        };
+        task.setOnScheduled(event -> {
+            running = task;
+            status.setText(feature.name() + "...");
+            statusBar.setVisible(true);
+            statusBar.setManaged(true);
+        });
+        task.setOnSucceeded(event -> finished(task));
+        task.setOnCancelled(event -> finished(task));
+        task.setOnFailed(event -> {
+            finished(task);
+            new Alert(Alert.AlertType.ERROR, feature.name() + " failed: "
+                    + task.getException().getMessage()).showAndWait();
+        });
+        FEATURES.execute(task);
+    }
+
+    private void finished(Task<Void> task) {
+        if (running == task) {
+            running = null;
+            statusBar.setVisible(false);
+            statusBar.setManaged(false);
+        }
+    }
+
     /**
      * Customized TextFieldTableCell class that extends TextFieldTableCell.
      * This class is used to customize the behavior of the table cell when editing.
@@ -279,6 +404,9 @@ public class SheepApplication extends Application {
 
         /**
          * Commits the edit of the table cell.
+         * A sheet is updated by its worker, the cell shows a pending marker until
+         * the update is published, so the table stays responsive during the recalculation.
+         * An update the sheet rejects is reported in an alert once it has been applied.
          *
          * @param var1 The new value to be committed.
          */
@@ -288,6 +416,18 @@ public class SheepApplication extends Application {
             int col,row;
             col = ((TablePosition<?, ?>) table.getSelectionModel().getSelectedCells().getFirst()).getColumn()-1;//minus index column
             row = ((TablePosition<?, ?>) table.getSelectionModel().getSelectedCells().getFirst()).getRow();
+            if (worker != null) {
+                worker.update(row, col, var1.toString()).whenComplete((response, failure) -> {
+                    String message = failure != null ? failure.getMessage()
+                            : response.isSuccess() ? null : response.getMessage();
+                    if (message != null) {
+                        Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, message).showAndWait());
+                    }
+                });
+                super.commitEdit(SheetRows.PENDING);
+                rows.edited(row, col);
+                return;
+            }
             UpdateResponse response = updater.update(row,col,var1.toString());
 
             if(var1 instanceof Integer){
@@ -295,7 +435,7 @@ public class SheepApplication extends Application {
             }else {
                 super.commitEdit(view.valueAt(row,col).getContent() !=null ? view.valueAt(row,col).getContent():"");
             }
-            table.setItems(generateDataInMap());
+            rows.refresh();
         }
 
 
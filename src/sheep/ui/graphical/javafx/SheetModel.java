@@ -3,6 +3,9 @@ package sheep.ui.graphical.javafx;
 import sheep.core.SheetUpdate;
 import sheep.core.SheetView;
 import sheep.core.UpdateResponse;
+import sheep.sheets.Sheet;
+import sheep.sheets.SheetChange;
+import sheep.sheets.SheetListener;
 import sheep.ui.graphical.javafx.Location;
 
 import javax.swing.*;
@@ -19,6 +22,13 @@ import java.util.List;
  * When a cell is updated, {@link SheetUpdate} is invoked to
  * update the underlying sheet model.
  * A popup is displayed if the update is invalid.
+ * <p>
+ * If the view is a {@link Sheet}, listeners are only told about the
+ * cells the sheet reports as changed, see {@link Sheet#addListener(sheep.sheets.SheetListener)},
+ * otherwise every update changes the whole table.
+ * The sheet may be updated on any thread, listeners are always told on the
+ * event dispatch thread. The model stops listening to the sheet once it is disposed,
+ * see {@link #dispose()}.
  * @provided
  */
 class SheetModel implements TableModel {
@@ -27,6 +37,7 @@ class SheetModel implements TableModel {
     private final SheetUpdate updater;
 
     private final List<TableModelListener> listeners = new ArrayList<>();
+    private final SheetListener listener = this::changed;
 
     /**
      * Create a new sheet model.
@@ -39,6 +50,19 @@ class SheetModel implements TableModel {
         this.parent = parent;
         this.view = view;
         this.updater = updater;
+        if (view instanceof Sheet sheet) {
+            sheet.addListener(listener);
+        }
+    }
+
+    /**
+     * Stop listening to the changes of the sheet, once the table is no longer shown.
+     * Must be called on the thread that updates the sheet.
+     */
+    public void dispose() {
+        if (view instanceof Sheet sheet) {
+            sheet.removeListener(listener);
+        }
     }
 
     @Override
@@ -108,8 +132,45 @@ class SheetModel implements TableModel {
             }
         }
 
+        if (!(view instanceof Sheet)) {
+            fire(new TableModelEvent(this));
+        }
+    }
+
+    /**
+     * Tell the listeners about the cells changed by an update of the sheet,
+     * as a single cell if only one cell changed and otherwise
+     * as runs of consecutive changed rows.
+     * Called on the thread that updated the sheet.
+     */
+    private void changed(SheetChange change) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> changed(change));
+            return;
+        }
+        if (change.size() == 1) {
+            change.forEach((row, column) -> fire(new TableModelEvent(this, row + 1, row + 1, column + 1)));
+            return;
+        }
+        int[] run = {-1, -1};
+        change.forEach((row, column) -> {
+            if (row > run[1] + 1 && run[0] >= 0) {
+                fire(new TableModelEvent(this, run[0] + 1, run[1] + 1));
+                run[0] = -1;
+            }
+            if (run[0] < 0) {
+                run[0] = row;
+            }
+            run[1] = row;
+        });
+        if (run[0] >= 0) {
+            fire(new TableModelEvent(this, run[0] + 1, run[1] + 1));
+        }
+    }
+
+    private void fire(TableModelEvent event) {
         for (TableModelListener listener : listeners) {
-            listener.tableChanged(new TableModelEvent(this));
+            listener.tableChanged(event);
         }
     }
 
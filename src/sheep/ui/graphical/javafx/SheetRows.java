@@ -0,0 +1,164 @@
+package sheep.ui.graphical.javafx;
+
+import javafx.beans.binding.StringBinding;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import sheep.core.SheetView;
+import sheep.sheets.SheetChange;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A virtual table model of a {@link SheetView} for a {@link javafx.scene.control.TableView}.
+ * <p>
+ * The items of the table are the row numbers of the sheet, nothing is stored per row.
+ * The value of a cell is only read from the view when the table displays that cell,
+ * see {@link #cell(int, int)}, and the table only creates cells for the rows
+ * and columns that are visible.
+ * <p>
+ * The model remembers the values the table currently displays, so that after the sheet
+ * is updated only those cells whose value changed are invalidated and redrawn.
+ * A sheet updated by a {@link SheetWorker} is only read while the worker is not
+ * updating it, cells that cannot be read show a pending marker until the worker
+ * publishes the changed cells, see {@link #published(SheetChange)}.
+ * Other views are re-read after each update, see {@link #refresh()}.
+ */
+class SheetRows {
+    /**
+     * Shown in place of a value that is still being calculated.
+     */
+    static final String PENDING = "\u2026";
+
+    private final SheetView view;
+    private final ObservableList<Integer> rows;
+    // the values of the cells the table displays, released once a cell shows another value
+    private final Set<CellValue> shown = Collections.newSetFromMap(new WeakHashMap<>());
+    // the writer of the sheet, null if the view is updated on the JavaFX application thread
+    private final SheetWorker worker;
+
+    /**
+     * Create a model of the given view.
+     *
+     * @param view   The view of the sheet to display.
+     * @param worker The writer of the sheet, or null if the view is updated
+     *               on the JavaFX application thread.
+     */
+    SheetRows(SheetView view, SheetWorker worker) {
+        this.view = view;
+        this.worker = worker;
+        this.rows = FXCollections.observableList(new AbstractList<>() {
+            @Override
+            public Integer get(int row) {
+                Objects.checkIndex(row, size());
+                return row;
+            }
+
+            @Override
+            public int size() {
+                return view.getRows();
+            }
+        });
+    }
+
+    /**
+     * The items of the table, i.e. the row numbers of the sheet.
+     */
+    ObservableList<Integer> rows() {
+        return rows;
+    }
+
+    /**
+     * The value of a cell, to be used as the cell value factory of a column.
+     * The content of the cell is read from the view when the table first asks for it.
+     *
+     * @param row    The row of the cell.
+     * @param column The column of the cell.
+     * @return The displayed value of the cell.
+     */
+    ObservableValue<String> cell(int row, int column) {
+        CellValue value = new CellValue(row, column);
+        shown.add(value);
+        return value;
+    }
+
+    /**
+     * Re-read the displayed cells after the view was updated,
+     * invalidating only the cells whose content changed.
+     * Does nothing for a sheet updated by a worker, which publishes its changed cells.
+     */
+    void refresh() {
+        if (worker != null) {
+            return;
+        }
+        for (CellValue value : new ArrayList<>(shown)) {
+            if (value.isValid() && !value.get().equals(value.read())) {
+                value.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Show the pending marker in a cell that was just edited.
+     *
+     * @param row    The row of the edited cell.
+     * @param column The column of the edited cell.
+     */
+    void edited(int row, int column) {
+        for (CellValue value : new ArrayList<>(shown)) {
+            if (value.isValid() && value.row == row && value.column == column) {
+                value.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Invalidate the displayed cells that were changed by the updates of the worker,
+     * and the cells that could not be read while it was updating the sheet.
+     *
+     * @param change The cells changed since the previous publish, or null if none.
+     */
+    void published(SheetChange change) {
+        for (CellValue value : new ArrayList<>(shown)) {
+            if (value.isValid() && (value.pending
+                    || change != null && change.contains(value.row, value.column))) {
+                value.invalidate();
+            }
+        }
+    }
+
+    /**
+     * The content of a cell, read from the view on demand.
+     */
+    private final class CellValue extends StringBinding {
+        private final int row;
+        private final int column;
+        // whether the pending marker is shown instead of the value
+        private boolean pending;
+
+        private CellValue(int row, int column) {
+            this.row = row;
+            this.column = column;
+        }
+
+        private String read() {
+            String content = view.valueAt(row, column).getContent();
+            return content == null ? "" : content;
+        }
+
+        @Override
+        protected String computeValue() {
+            if (worker == null) {
+                return read();
+            }
+            String content = worker.pending(row, column) ? null : worker.read(this::read);
+            pending = content == null;
+            return pending ? PENDING : content;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package sheep.ui.graphical.javafx;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import sheep.core.UpdateResponse;
+import sheep.sheets.Sheet;
+import sheep.sheets.SheetChange;
+import sheep.sheets.SheetListener;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The single writer of a sheet shown in a window.
+ * <p>
+ * Updates are applied in order on a background thread, so the JavaFX application
+ * thread never waits for a recalculation, however many cells it changes.
+ * The sheet is locked while an update is applied, the JavaFX application thread only
+ * reads the sheet while it is not, see {@link #read(Supplier)}, and shows a pending
+ * marker for the cells it could not read.
+ * <p>
+ * The cells changed by the updates, see {@link Sheet#addListener(SheetListener)},
+ * are collected and published on the JavaFX application thread at most once per pulse,
+ * however many updates completed since the previous pulse.
+ */
+class SheetWorker {
+    // applies the updates of every sheet, one at a time
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sheep-recalculation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Sheet sheet;
+    private final Consumer<SheetChange> publish;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SheetListener listener = this::changed;
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            publish();
+        }
+    };
+
+    // the sequence number of each edited cell's latest update, by cell index
+    private final Map<Integer, Long> edits = new ConcurrentHashMap<>();
+    // guarded by this
+    private long submitted;
+    private long applied;
+    private SheetChange unpublished;
+    private boolean scheduled;
+    private boolean closed;
+    // only used on the JavaFX application thread
+    private long published;
+
+    /**
+     * Create the writer of a sheet.
+     *
+     * @param sheet   The sheet to update, not to be updated by anything else from now on.
+     * @param publish Receives the cells changed since the previous pulse on the
+     *                JavaFX application thread, or null if no cell changed but
+     *                the sheet may have been locked while it was read.
+     */
+    SheetWorker(Sheet sheet, Consumer<SheetChange> publish) {
+        this.sheet = sheet;
+        this.publish = publish;
+        // the listeners of the sheet are only used by the writer thread
+        WRITER.execute(() -> sheet.addListener(listener));
+    }
+
+    /**
+     * Update a cell of the sheet on the background thread.
+     * The cell is pending until the update is published, see {@link #pending(int, int)}.
+     * May be called from any thread.
+     *
+     * @param row    The row index to update.
+     * @param column The column index to update.
+     * @param input  The value as a string to replace within the sheet.
+     * @return The response of the sheet, completed once the update is applied.
+     */
+    CompletableFuture<UpdateResponse> update(int row, int column, String input) {
+        long sequence;
+        synchronized (this) {
+            sequence = ++submitted;
+            edits.put(row * sheet.getColumns() + column, sequence);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return locked(() -> sheet.update(row, column, input));
+            } finally {
+                synchronized (this) {
+                    applied = sequence;
+                }
+                schedule();
+            }
+        }, WRITER);
+    }
+
+    /**
+     * Read the sheet on the background thread, after every update submitted so far,
+     * e.g. to take a snapshot. May be called from any thread.
+     *
+     * @param reader Reads the sheet.
+     * @return The result of the reader, completed once it ran.
+     */
+    <T> CompletableFuture<T> call(Supplier<T> reader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return locked(reader);
+            } finally {
+                schedule();
+            }
+        }, WRITER);
+    }
+
+    /**
+     * Read the sheet on the calling thread if no update is being applied.
+     *
+     * @param reader Reads the sheet.
+     * @return The result of the reader, or null if the sheet is being updated.
+     */
+    <T> T read(Supplier<T> reader) {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            return reader.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the cell has been edited and the edit is not yet published.
+     * Called on the JavaFX application thread.
+     */
+    boolean pending(int row, int column) {
+        Long sequence = edits.get(row * sheet.getColumns() + column);
+        return sequence != null && sequence > published;
+    }
+
+    /**
+     * The sheet updated by this writer.
+     */
+    Sheet sheet() {
+        return sheet;
+    }
+
+    /**
+     * Stop publishing changes, once the sheet is no longer shown.
+     * Updates already submitted are still applied.
+     *
+     * @param closeSheet Whether to also close the sheet, see {@link Sheet#close()},
+     *                   once the updates already submitted are applied.
+     */
+    void close(boolean closeSheet) {
+        synchronized (this) {
+            closed = true;
+        }
+        WRITER.execute(() -> {
+            sheet.removeListener(listener);
+            if (closeSheet) {
+                sheet.close();
+            }
+        });
+        pulse.stop();
+    }
+
+    private <T> T locked(Supplier<T> reader) {
+        lock.lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Collect the cells changed by an update, on the background thread.
+     */
+    private synchronized void changed(SheetChange change) {
+        unpublished = unpublished == null ? change : unpublished.merge(change);
+    }
+
+    /**
+     * Publish on the next pulse, unless a publish is already scheduled.
+     */
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled || closed) {
+                return;
+            }
+            scheduled = true;
+        }
+        Platform.runLater(pulse::start);
+    }
+
+    /**
+     * Publish every change collected since the previous pulse,
+     * on the JavaFX application thread.
+     */
+    private void publish() {
+        pulse.stop();
+        SheetChange change;
+        synchronized (this) {
+            scheduled = false;
+            if (closed) {
+                return;
+            }
+            change = unpublished;
+            unpublished = null;
+            published = applied;
+        }
+        edits.values().removeIf(sequence -> sequence <= published);
+        publish.accept(change);
+    }
+}
@@ -0,0 +1,67 @@
+package sheep.ui.graphical.javafx;
+
+import sheep.core.SheetView;
+import sheep.core.ViewElement;
+
+import java.util.function.Supplier;
+
+/**
+ * The view of a sheet given to a feature running in the background.
+ * <p>
+ * The cells are read from a snapshot of the sheet, see {@link sheep.sheets.Sheet#snapshot()},
+ * taken the first time the feature reads a cell. Features that read the sheet, e.g. to save
+ * or export it, see a consistent copy while the sheet carries on being updated, and features
+ * that never read it, e.g. to open another sheet, do not copy it at all.
+ */
+class SnapshotView implements SheetView {
+    private final int rows;
+    private final int columns;
+    private final Supplier<SheetView> snapshot;
+    // guarded by this, null until a cell is read
+    private SheetView view;
+
+    /**
+     * Create the view of a sheet.
+     *
+     * @param rows     The amount of rows of the sheet.
+     * @param columns  The amount of columns of the sheet.
+     * @param snapshot Takes the snapshot, called at most once from the thread of the feature.
+     */
+    SnapshotView(int rows, int columns, Supplier<SheetView> snapshot) {
+        this.rows = rows;
+        this.columns = columns;
+        this.snapshot = snapshot;
+    }
+
+    private synchronized SheetView view() {
+        if (view == null) {
+            view = snapshot.get();
+        }
+        return view;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumns() {
+        return columns;
+    }
+
+    @Override
+    public ViewElement valueAt(int row, int column) {
+        return view().valueAt(row, column);
+    }
+
+    @Override
+    public ViewElement formulaAt(int row, int column) {
+        return view().formulaAt(row, column);
+    }
+
+    @Override
+    public String encode() {
+        return view().encode();
+    }
+}
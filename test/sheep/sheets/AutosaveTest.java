@@ -0,0 +1,78 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AutosaveTest {
+    @Rule
+    public TemporaryFolder temporary = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() {
+        directory = temporary.getRoot().toPath();
+    }
+
+    @Test(timeout = 10000)
+    public void testSavesOnlyChangedSheet() throws Exception {
+        Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(3, 2);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        Path file = directory.resolve("autosave.sheep");
+
+        // run the snapshots directly on the autosave thread, nothing else updates the sheet
+        try (Autosave autosave = new Autosave(sheet, file, Duration.ofMillis(10), Runnable::run)) {
+            while (autosave.statistics().saves() < 1) {
+                Thread.sleep(10);
+            }
+            while (autosave.statistics().skipped() < 3) {
+                Thread.sleep(10);
+            }
+            AutosaveStatistics statistics = autosave.statistics();
+            assertEquals("Unchanged sheet saved again.", 1, statistics.saves());
+            assertEquals("Save failed.", 0, statistics.failures());
+            assertTrue("Snapshot time not recorded.", statistics.totalSnapshotNanos() > 0);
+        }
+        assertEquals("Saved file differs from the sheet.", sheet.encode(),
+                Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 10000)
+    public void testRetriesFailedSave() throws Exception {
+        Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(3, 2);
+        sheet.update(0, 0, "1");
+        Path missing = directory.resolve("missing");
+        Path file = missing.resolve("autosave.sheep");
+
+        try (Autosave autosave = new Autosave(sheet, file, Duration.ofMillis(10), Runnable::run)) {
+            while (autosave.statistics().failures() < 1) {
+                Thread.sleep(10);
+            }
+            assertEquals("Failed save counted as saved.", 0, autosave.statistics().saves());
+            assertTrue("Failure not reported.", autosave.lastFailure().isPresent());
+
+            Files.createDirectory(missing);
+            while (autosave.statistics().saves() < 1) {
+                Thread.sleep(10);
+            }
+        }
+        assertEquals("Failed save was not retried.", sheet.encode(),
+                Files.readString(file, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,126 @@
+package sheep.sheets;
+
+import org.junit.Test;
+import sheep.expression.Expression;
+import sheep.expression.basic.Constant;
+import sheep.expression.basic.Nothing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CellStoreTest {
+    private void testStore(CellStore store) {
+        assertEquals("Store has the wrong size.", 12, store.size());
+        assertEquals("New cells should be empty.", CellValues.EMPTY, store.kind(11));
+        assertEquals("New cells should hold the default formula.", 0, store.formula(11));
+
+        store.setNumber(11, Long.MIN_VALUE);
+        store.setKind(11, CellValues.NUMBER);
+        store.setFormula(11, 42);
+        store.setNumber(10, 7);
+        assertEquals("Store has the wrong number.", Long.MIN_VALUE, store.number(11));
+        assertEquals("Store has the wrong kind.", CellValues.NUMBER, store.kind(11));
+        assertEquals("Store has the wrong formula.", 42, store.formula(11));
+        assertEquals("Neighbouring cell was overwritten.", 0, store.formula(10));
+    }
+
+    @Test
+    public void testHeapStore() {
+        testStore(new HeapCellStore(12));
+    }
+
+    @Test
+    public void testOffHeapStore() {
+        testStore(OffHeapCellStore.allocate(12));
+    }
+
+    @Test
+    public void testMappedStore() throws IOException {
+        Path file = Files.createTempFile("sheep", ".cells");
+        try {
+            OffHeapCellStore store = OffHeapCellStore.map(file, 12);
+            testStore(store);
+            store.clear();
+            assertEquals("Cleared cells should be empty.", CellValues.EMPTY, store.kind(11));
+            assertEquals("Cleared cells should hold the default formula.", 0, store.formula(11));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testPagedStore() throws IOException {
+        Path file = Files.createTempFile("sheep", ".pages");
+        try {
+            PagedCellStore small = new PagedCellStore(file, 12, 3, 0);
+            testStore(small);
+            small.close();
+
+            // pages of a single row each, only two pages in memory
+            int rows = PagedCellStore.PAGE_BYTES / (int) OffHeapCellStore.CELL_BYTES;
+            PagedCellStore store = new PagedCellStore(file, rows * 4, rows, 0);
+            for (int index = 0; index < store.size(); index += rows) {
+                store.setNumber(index, index);
+            }
+            store.flush();
+            for (int index = 0; index < store.size(); index += rows) {
+                assertEquals("Page lost a write when evicted.", index, store.number(index));
+            }
+            PageStatistics statistics = store.pageStatistics().orElseThrow();
+            assertEquals("Working set is not bounded.", 2, statistics.resident());
+            assertEquals("Every page access should miss.", 8, statistics.misses());
+            store.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testPagedStoreWaitsForWrites() throws IOException {
+        Path file = Files.createTempFile("sheep", ".pages");
+        try {
+            // writes are held until run below
+            List<Runnable> held = new ArrayList<>();
+            int rows = PagedCellStore.PAGE_BYTES / (int) OffHeapCellStore.CELL_BYTES;
+            PagedCellStore store = new PagedCellStore(file, rows * 4, rows, 0, held::add);
+            store.setNumber(0, 42);
+            store.number(rows);
+            store.number(2 * rows); // page 0 evicted while dirty, its write is held
+            store.number(0); // faulted back in from the pending write
+            store.number(rows);
+            store.number(3 * rows); // page 0 evicted while clean
+            assertEquals("Page was read before its write completed.", 42, store.number(0));
+
+            while (!held.isEmpty()) {
+                held.remove(0).run();
+            }
+            store.number(rows);
+            store.number(2 * rows);
+            assertEquals("Page lost a write when evicted.", 42, store.number(0));
+            store.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFormulaTable() {
+        Expression empty = new Nothing();
+        Expression formula = new Constant(1);
+        FormulaTable table = new FormulaTable(empty, expression -> new int[0]);
+        assertSame("Handle 0 should be the default formula.", empty, table.get(0));
+
+        int handle = table.acquire(formula);
+        assertEquals("Shared formulas should share a handle.", handle, table.acquire(formula));
+        table.release(handle);
+        assertSame("Formula was released while still in use.", formula, table.get(handle));
+        table.release(handle);
+        assertEquals("Released handle should be reused.", handle, table.acquire(new Constant(2)));
+    }
+}
@@ -0,0 +1,122 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedSheetFileTest {
+    @Rule
+    public TemporaryFolder temporary = new TemporaryFolder();
+
+    private SheetBuilder builder;
+    private Path directory;
+    private Path index;
+
+    @Before
+    public void setUp() throws IOException {
+        builder = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing());
+        directory = temporary.getRoot().toPath();
+        index = directory.resolve("sheet");
+    }
+
+    @Test
+    public void testSaveOnlyAppendsChangedBlocks() throws Exception {
+        Sheet sheet = builder.empty(3 * ChunkedSheetFile.BLOCK_ROWS, 2);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.fillDown(new CellLocation(1, 0), sheet.getRows() - 1);
+        sheet.saveChunked(index);
+        Path data = directory.resolve("sheet.0.blocks");
+        long saved = Files.size(data);
+
+        sheet.update(ChunkedSheetFile.BLOCK_ROWS, 1, "42");
+        sheet.saveChunked(index);
+        ChunkedSheetFile file = ChunkedSheetFile.open(index);
+        assertEquals("Only the changed block should be appended.",
+                saved + file.read(1).getBytes().length, Files.size(data));
+
+        Sheet read = builder.loadChunked(index);
+        assertEquals("Formulas were not restored.", sheet.encode(), read.encode());
+        assertEquals("Values were not restored.", "768", read.valueAt(767, 0).getContent());
+        assertEquals("Changed cell was not restored.", "42",
+                read.valueAt(ChunkedSheetFile.BLOCK_ROWS, 1).getContent());
+    }
+
+    @Test
+    public void testSaveCompactsReplacedBlocks() throws Exception {
+        Sheet sheet = builder.empty(2 * ChunkedSheetFile.BLOCK_ROWS, 4);
+        for (int row = 0; row < sheet.getRows(); row++) {
+            for (int column = 0; column < sheet.getColumns(); column++) {
+                sheet.update(row, column, "1234567890123");
+            }
+        }
+        sheet.saveChunked(index);
+        Path first = directory.resolve("sheet.0.blocks");
+        for (int save = 1; Files.exists(first); save++) {
+            sheet.update(0, 0, String.valueOf(save));
+            sheet.saveChunked(index);
+        }
+
+        assertEquals("Compacted blocks were not written to the next generation.",
+                List.of(index, directory.resolve("sheet.1.blocks")), files());
+        Sheet read = builder.loadChunked(index);
+        assertEquals("Formulas were not restored.", sheet.encode(), read.encode());
+    }
+
+    @Test
+    public void testCreateReplacesPreviousGeneration() throws Exception {
+        Sheet sheet = builder.empty(ChunkedSheetFile.BLOCK_ROWS + 1, 2);
+        sheet.update(0, 0, "1");
+        sheet.saveChunked(index);
+
+        Sheet replacement = builder.empty(2, 2);
+        replacement.update(1, 1, "2");
+        replacement.saveChunked(index);
+        assertEquals("Data file of the replaced sheet was not deleted.",
+                List.of(index, directory.resolve("sheet.1.blocks")), files());
+        Sheet read = builder.loadChunked(index);
+        assertEquals("Replacement was not restored.", replacement.encode(), read.encode());
+    }
+
+    @Test
+    public void testCrashBeforeIndexSwapKeepsPreviousSave() throws Exception {
+        Sheet sheet = builder.empty(2 * ChunkedSheetFile.BLOCK_ROWS, 2);
+        sheet.update(0, 0, "1");
+        sheet.saveChunked(index);
+        String saved = sheet.encode();
+        byte[] previous = Files.readAllBytes(index);
+
+        // the blocks of the next save reach the data file, the new index only a temporary file
+        sheet.update(ChunkedSheetFile.BLOCK_ROWS, 0, "2");
+        sheet.saveChunked(index);
+        byte[] next = Files.readAllBytes(index);
+        Files.write(index, previous);
+        Files.write(directory.resolve("sheet.tmp"), Arrays.copyOf(next, next.length / 2));
+
+        Sheet read = builder.loadChunked(index);
+        assertEquals("Previous save was not restored.", saved, read.encode());
+        read.update(1, 1, "3");
+        read.saveChunked(index);
+        assertEquals("Saving after a crash lost changes.",
+                read.encode(), builder.loadChunked(index).encode());
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package sheep.sheets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class CompressedSheetFileTest {
+    private SheetBuilder builder;
+    private Sheet sheet;
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        builder = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing());
+        sheet = builder.empty(3 * CompressedSheetFile.BLOCK_ROWS, 3);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.fillDown(new CellLocation(1, 0), sheet.getRows() - 1);
+        sheet.update(0, 2, "foo");
+        file = Files.createTempFile("sheep", ".sheepz");
+        sheet.saveCompressed(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Sheet read = builder.loadCompressed(file);
+        assertEquals("Formulas were not restored.", sheet.encode(), read.encode());
+        assertEquals("Values were not evaluated.", "3072", read.valueAt(3071, 0).getContent());
+    }
+
+    @Test
+    public void testOpenDecompressesBlocksOnDemand() throws Exception {
+        Sheet read = builder.openCompressed(file);
+        assertEquals("Row of the last block was not read.", "3072", read.valueAt(3071, 0).getContent());
+        assertEquals("Formulas were not restored.", sheet.encode(), read.encode());
+    }
+
+    @Test
+    public void testCloseReleasesFile() throws Exception {
+        Sheet read = builder.openCompressed(file);
+        assertEquals("Row of the first block was not read.", "1", read.valueAt(0, 0).getContent());
+        read.close();
+        read.close();
+        assertThrows("Rows should no longer load once the sheet is closed.",
+                UncheckedIOException.class, () -> read.valueAt(3071, 0));
+    }
+
+    @Test
+    public void testCorruptBlock() throws Exception {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 8] ^= 1;
+        Files.write(file, bytes);
+        assertThrows("Corrupt block should fail to load.",
+                IOException.class, () -> builder.loadCompressed(file));
+    }
+}
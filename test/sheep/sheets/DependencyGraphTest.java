@@ -0,0 +1,45 @@
+package sheep.sheets;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DependencyGraphTest {
+    private int[] usages(DependencyGraph graph, int cell) {
+        int[] usages = new int[graph.usageCount(cell)];
+        for (int i = 0; i < usages.length; i++) {
+            usages[i] = graph.usage(cell, i);
+        }
+        Arrays.sort(usages);
+        return usages;
+    }
+
+    @Test
+    public void testRebuild() {
+        DependencyGraph graph = new DependencyGraph(4);
+        int[][] dependencies = {{}, {0}, {0, 1}, {}};
+        graph.rebuild(cell -> dependencies[cell]);
+        assertArrayEquals("Wrong dependencies.", new int[]{0, 1}, graph.dependencies(2));
+        assertArrayEquals("Wrong usages.", new int[]{1, 2}, usages(graph, 0));
+        assertArrayEquals("Wrong usages.", new int[]{2}, usages(graph, 1));
+        assertEquals("Unused cell has usages.", 0, graph.usageCount(3));
+    }
+
+    @Test
+    public void testEdit() {
+        DependencyGraph graph = new DependencyGraph(4);
+        graph.setDependencies(2, new int[]{0, 1});
+        graph.setDependencies(3, new int[]{0});
+        graph.setDependencies(2, new int[]{1, 3});
+        assertArrayEquals("Wrong usages after edit.", new int[]{3}, usages(graph, 0));
+        assertArrayEquals("Wrong usages after edit.", new int[]{2}, usages(graph, 3));
+
+        graph.compact();
+        assertArrayEquals("Compaction lost dependencies.", new int[]{1, 3}, graph.dependencies(2));
+        assertArrayEquals("Compaction lost usages.", new int[]{3}, usages(graph, 0));
+        assertArrayEquals("Compaction lost usages.", new int[]{2}, usages(graph, 1));
+    }
+}
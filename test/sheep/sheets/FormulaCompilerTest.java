@@ -0,0 +1,69 @@
+package sheep.sheets;
+
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.parsing.ComplexParser;
+import sheep.parsing.ParseException;
+import sheep.parsing.Parser;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FormulaCompilerTest {
+    // every cell holds ten times its row plus its column
+    private final CellReader cells = (row, column) -> row * 10L + column;
+    private final Parser parser = new ComplexParser(new CoreFactory());
+
+    private Optional<MethodHandle> compile(String formula) throws ParseException {
+        return FormulaCompiler.compile(parser.parse(formula));
+    }
+
+    private long run(String formula) throws Throwable {
+        MethodHandle handle = compile(formula).orElseThrow();
+        return (long) handle.invokeExact(cells);
+    }
+
+    @Test
+    public void testConstant() throws Throwable {
+        assertEquals("Compiled constant has the wrong value.", 42, run("42"));
+    }
+
+    @Test
+    public void testReference() throws Throwable {
+        assertEquals("Compiled reference read the wrong cell.", 31, run("B3"));
+    }
+
+    @Test
+    public void testArithmetic() throws Throwable {
+        assertEquals("Compiled arithmetic has the wrong value.",
+                20 - 1 - 2 + 3 * 4, run("20 - 1 - 2 + 3 * 4"));
+        assertEquals("Compiled division has the wrong value.", 3, run("A2 / 2 / 3"));
+    }
+
+    @Test
+    public void testComparisons() throws Throwable {
+        assertEquals("Compiled less than has the wrong value.", 1, run("A1 < A2 < A3"));
+        assertEquals("Compiled less than has the wrong value.", 0, run("A1 < A3 < A2"));
+        assertEquals("Compiled equality has the wrong value.", 1, run("A1 = 10"));
+        // as parsed by the complex parser, (A1 = 1) + 9
+        assertEquals("Compiled precedence differs from the complex parser.", 9, run("A1 = 1 + 9"));
+    }
+
+    @Test
+    public void testFunctions() throws Throwable {
+        assertEquals("Compiled mean has the wrong value.", 7, run("MEAN(20, 2, 5, 2)"));
+        assertEquals("Compiled median has the wrong value.", 15, run("MEDIAN(A1, A2, 100, 5)"));
+        assertEquals("Compiled parentheses have the wrong value.", 12, run("(1 + 2) * 4"));
+    }
+
+    @Test
+    public void testUnsupported() throws ParseException {
+        Optional<MethodHandle> builtin = compile("hundred + 1");
+        assertFalse("Formula using a built-in should not be compiled.", builtin.isPresent());
+        Optional<MethodHandle> empty = compile("1 + ");
+        assertFalse("Formula with an empty operand should not be compiled.", empty.isPresent());
+    }
+}
@@ -0,0 +1,130 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.Expression;
+import sheep.expression.TypeError;
+import sheep.expression.basic.Constant;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class FormulaTemplateTest {
+    private Sheet sheet;
+
+    @Before
+    public void setUp() {
+        sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(10, 3);
+    }
+
+    @Test
+    public void testFillDownShiftsReferences() throws TypeError {
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.fillDown(new CellLocation(1, 0), 9);
+        assertEquals("Filled formula did not shift its reference.",
+                "A4 + 1", sheet.formulaAt(5, 0).getContent());
+        assertEquals("Filled chain was not evaluated in order.",
+                "10", sheet.valueAt(9, 0).getContent());
+    }
+
+    @Test
+    public void testFillRightShiftsReferences() throws TypeError {
+        sheet.update(0, 0, "3");
+        sheet.update(0, 1, "A0 * 2");
+        sheet.fillRight(new CellLocation(0, 1), 2);
+        assertEquals("Filled formula did not shift its reference.",
+                "B0 * 2", sheet.formulaAt(0, 2).getContent());
+        assertEquals("Filled cell has the wrong value.",
+                "12", sheet.valueAt(0, 2).getContent());
+    }
+
+    @Test
+    public void testFilledCellsShareTemplate() throws TypeError {
+        sheet.update(1, 1, "A1 * 2");
+        sheet.fillDown(new CellLocation(1, 1), 9);
+        FormulaTemplate first = FormulaTemplate.of(sheet.formulaAt(new CellLocation(2, 1))).get();
+        FormulaTemplate last = FormulaTemplate.of(sheet.formulaAt(new CellLocation(9, 1))).get();
+        assertEquals("Filled cells do not share a template.", first, last);
+        assertEquals("Template is not rendered relative to its origin.",
+                "R[0]C[-1] * 2", first.renderRelative());
+    }
+
+    @Test
+    public void testFillRepeatedReferences() throws TypeError {
+        for (int row = 0; row < 4; row++) {
+            sheet.update(row, 0, String.valueOf(row + 1));
+        }
+        sheet.update(0, 1, "A0 * A0 + 1");
+        sheet.fillDown(new CellLocation(0, 1), 3);
+        assertEquals("Every occurrence of a reference should shift.",
+                "A2 * A2 + 1", sheet.formulaAt(2, 1).getContent());
+        assertEquals("Filled cell has the wrong value.",
+                "10", sheet.valueAt(2, 1).getContent());
+    }
+
+    @Test
+    public void testFilledCellsShareHandle() throws TypeError {
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.fillDown(new CellLocation(1, 0), 9);
+        CellStore store = sheet.values().store();
+        for (int row = 2; row <= 9; row++) {
+            assertEquals("Filled cells should share the formula handle of the template.",
+                    store.formula(sheet.values().index(1, 0)),
+                    store.formula(sheet.values().index(row, 0)));
+        }
+    }
+
+    @Test
+    public void testUsagesFollowFilledCells() throws TypeError {
+        sheet.update(0, 1, "A0 * 2");
+        sheet.fillDown(new CellLocation(0, 1), 9);
+        sheet.update(7, 0, "5");
+        assertEquals("Filled cell was not updated with its dependency.",
+                "10", sheet.valueAt(7, 1).getContent());
+    }
+
+    @Test
+    public void testFillOutsideSheet() {
+        sheet.update(0, 1, "A9 + 1");
+        assertThrows(IllegalArgumentException.class,
+                () -> sheet.fillDown(new CellLocation(0, 1), 1));
+    }
+
+    @Test
+    public void testShiftedStateCanBeIterated() throws TypeError {
+        // finds its reference by iterating the state, as e.g. a built-in listing the symbols would
+        Expression probe = new Expression() {
+            @Override
+            public Set<String> dependencies() {
+                return Set.of("A0");
+            }
+
+            @Override
+            public Expression value(Map<String, Expression> state) {
+                for (Map.Entry<String, Expression> entry : state.entrySet()) {
+                    if (entry.getKey().equals("A0")) {
+                        return entry.getValue();
+                    }
+                }
+                return new Nothing();
+            }
+
+            @Override
+            public String render() {
+                return "A0";
+            }
+        };
+        Expression instance = new FormulaTemplate(probe, 0, 1).instantiate(2, 1);
+        Map<String, Expression> state = Map.of("A0", new Constant(1), "A2", new Constant(3));
+        assertEquals("Iterated state was not shifted.", "3", instance.value(state).render());
+    }
+}
@@ -0,0 +1,86 @@
+package sheep.sheets;
+
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.parsing.ComplexParser;
+import sheep.parsing.ParseException;
+import sheep.parsing.Parser;
+import sheep.parsing.SimpleParser;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramTest {
+    // every cell holds ten times its row plus its column
+    private final CellReader cells = (row, column) -> row * 10L + column;
+    private final Parser parser = new ComplexParser(new CoreFactory());
+
+    private Optional<Program> tryLower(Parser parser, String formula) throws ParseException {
+        return Program.lower(parser.parse(formula));
+    }
+
+    private Program lower(String formula) throws ParseException {
+        return tryLower(parser, formula).orElseThrow();
+    }
+
+    private long run(Program program) {
+        return program.run(cells, new long[program.frameSize()]);
+    }
+
+    private long run(String formula) throws ParseException {
+        return run(lower(formula));
+    }
+
+    @Test
+    public void testRun() throws ParseException {
+        assertEquals("Program has the wrong value.", 21 * 2 + 10, run("B2 * 2 + A1"));
+        assertEquals("Program has the wrong value.", 15, run("MEDIAN(A1, A2, 100, 5)"));
+        assertEquals("Program has the wrong value.", 1, run("A1 < A2 < A3"));
+    }
+
+    @Test
+    public void testConstantFolding() throws ParseException {
+        Program program = lower("MEAN(1, 2, 3) * 60 * 60");
+        assertEquals("Constant formula was not folded into a single constant.",
+                2, program.length());
+        assertEquals("Folded formula has the wrong value.", 7200, run("MEAN(1, 2, 3) * 60 * 60"));
+    }
+
+    @Test
+    public void testFlatten() throws ParseException {
+        assertEquals("Nested sums were not flattened.",
+                lower("1 + A1 + 2").length(), lower("(1 + A1) + 2").length());
+        assertEquals("Flattened difference has the wrong value.", 5, run("(A1 - 2) - 3"));
+        assertEquals("Right nested difference has the wrong value.", 11, run("A1 - (2 - 3)"));
+    }
+
+    @Test
+    public void testCommonSubexpressions() throws ParseException {
+        Program program = lower("(A1 * B2) + (A1 * B2)");
+        assertEquals("Repeated sub-expression was not stored in a local slot.",
+                3, program.frameSize());
+        assertEquals("Program with repeated sub-expressions has the wrong value.",
+                420, run("(A1 * B2) + (A1 * B2)"));
+    }
+
+    @Test
+    public void testDivisionByZeroNotFolded() throws ParseException {
+        assertTrue("Division by zero should be left for evaluation.",
+                tryLower(parser, "1 / 0").isPresent());
+        assertFalse("Formula using a built-in should not be lowered.",
+                tryLower(parser, "hundred * 2").isPresent());
+    }
+
+    @Test
+    public void testFollowsParser() throws ParseException {
+        // the simple parser splits on = first, the complex parser on + last
+        Parser simple = new SimpleParser(new CoreFactory());
+        assertEquals("Program does not follow the simple parser.",
+                0, run(tryLower(simple, "A0 = 0 + 1").orElseThrow()));
+        assertEquals("Program does not follow the complex parser.",
+                2, run(tryLower(parser, "A0 = 0 + 1").orElseThrow()));
+    }
+}
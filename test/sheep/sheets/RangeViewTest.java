@@ -0,0 +1,54 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class RangeViewTest {
+    private Sheet sheet;
+
+    @Before
+    public void setUp() {
+        sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(3, 3);
+        sheet.update(0, 1, "1");
+        sheet.update(1, 1, "B0 + 1");
+        sheet.update(1, 2, "foo");
+        sheet.update(2, 2, "B1 * 3");
+    }
+
+    @Test
+    public void testReadValuesRowMajor() {
+        long[] numbers = new long[5];
+        byte[] kinds = new byte[5];
+        sheet.readValues(0, 1, 2, 2, RangeView.Order.ROW_MAJOR, numbers, kinds, 1);
+        assertArrayEquals(new long[]{0, 1, 0, 2, 0}, numbers);
+        assertArrayEquals(new byte[]{0, RangeView.NUMBER, RangeView.EMPTY,
+                RangeView.NUMBER, RangeView.OTHER}, kinds);
+    }
+
+    @Test
+    public void testReadRenderedColumnMajor() {
+        String[] rendered = new String[6];
+        sheet.readRendered(0, 1, 3, 2, RangeView.Order.COLUMN_MAJOR, rendered, 0);
+        assertArrayEquals(new String[]{"1", "2", "", "", "foo", "6"}, rendered);
+    }
+
+    @Test
+    public void testSnapshotReadsTheSame() {
+        String[] expected = new String[9];
+        String[] actual = new String[9];
+        sheet.readRendered(0, 0, 3, 3, RangeView.Order.ROW_MAJOR, expected, 0);
+        sheet.snapshot().readRendered(0, 0, 3, 3, RangeView.Order.ROW_MAJOR, actual, 0);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testRangeOutsideSheet() {
+        sheet.readRendered(2, 0, 2, 1, RangeView.Order.ROW_MAJOR, new String[2], 0);
+    }
+}
@@ -0,0 +1,52 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Test;
+import sheep.core.ViewElement;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RenderCacheTest {
+    private Sheet sheet;
+
+    @Before
+    public void setUp() {
+        sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(3, 2);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+    }
+
+    @Test
+    public void testRepeatedReadsAreCached() {
+        ViewElement value = sheet.valueAt(1, 0);
+        ViewElement formula = sheet.formulaAt(1, 0);
+        assertSame("Value rendered again.", value, sheet.valueAt(1, 0));
+        assertSame("Formula rendered again.", formula, sheet.formulaAt(1, 0));
+    }
+
+    @Test
+    public void testUpdateInvalidatesDependants() {
+        assertEquals("2", sheet.valueAt(1, 0).getContent());
+        assertEquals("A0 + 1", sheet.formulaAt(1, 0).getContent());
+        sheet.update(0, 0, "5");
+        sheet.update(1, 0, "A0 + 2");
+        assertEquals("7", sheet.valueAt(1, 0).getContent());
+        assertEquals("A0 + 2", sheet.formulaAt(1, 0).getContent());
+    }
+
+    @Test
+    public void testCellsSharingASlot() {
+        Sheet large = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(RenderCache.SLOTS + 1, 1);
+        large.update(0, 0, "1");
+        large.update(RenderCache.SLOTS, 0, "2");
+        assertEquals("1", large.valueAt(0, 0).getContent());
+        assertEquals("2", large.valueAt(RenderCache.SLOTS, 0).getContent());
+        assertEquals("1", large.valueAt(0, 0).getContent());
+    }
+}
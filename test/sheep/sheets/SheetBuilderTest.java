@@ -0,0 +1,158 @@
+package sheep.sheets;
+
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.Expression;
+import sheep.expression.basic.Constant;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+import sheep.parsing.SimpleParser;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class SheetBuilderTest {
+    @Test
+    public void testLoadReportsProgress() throws Exception {
+        Path file = Files.createTempFile("sheep", ".sheep");
+        try {
+            Files.writeString(file, "1|2\r\nA0 + B0||\n\n4\n");
+            List<Long> progress = new ArrayList<>();
+            Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                    .reportProgress((done, total) -> progress.add(done))
+                    .load(file.toString());
+            assertEquals("Sheet has the wrong amount of rows.", 4, sheet.getRows());
+            assertEquals("Sheet has the wrong amount of columns.", 3, sheet.getColumns());
+            assertEquals("Loaded cell has the wrong value.", "3", sheet.valueAt(1, 0).getContent());
+            assertEquals("Progress did not reach the end of the file.",
+                    Files.size(file), (long) progress.get(progress.size() - 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testOpenLoadsRowsOnDemand() throws Exception {
+        Path file = Files.createTempFile("sheep", ".sheep");
+        try {
+            Files.writeString(file, "1|A2 * 2\n|B0 + 1\n5|\n\n7|$x\n");
+            Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                    .open(file.toString());
+            assertEquals("Dependencies of a loaded row were not loaded.",
+                    "11", sheet.valueAt(1, 1).getContent());
+            sheet.update(2, 0, "10");
+            assertEquals("Update did not reach loaded rows.", "21", sheet.valueAt(1, 1).getContent());
+            assertThrows("Unparsable row should fail when loaded.",
+                    IllegalStateException.class, () -> sheet.valueAt(4, 0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFailedRowsStayUnloaded() throws Exception {
+        Path file = Files.createTempFile("sheep", ".sheep");
+        try {
+            Files.writeString(file, "1|A1\n$x|2\n");
+            Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                    .open(file.toString());
+            assertThrows("Unparsable dependency should fail the load.",
+                    IllegalStateException.class, () -> sheet.valueAt(0, 0));
+            assertEquals("Rows loaded before the failure were not evaluated.",
+                    "1", sheet.valueAt(0, 0).getContent());
+            assertThrows("Unparsable row should fail every time it is loaded.",
+                    IllegalStateException.class, () -> sheet.valueAt(1, 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCompiledFormulasFollowTheParser() throws Exception {
+        // the simple parser splits on = first, the complex parser on + last
+        for (SheetBuilder builder : List.of(
+                new SheetBuilder(new SimpleParser(new CoreFactory()), new Nothing()).interpretFormulas(),
+                new SheetBuilder(new SimpleParser(new CoreFactory()), new Nothing()))) {
+            Sheet sheet = builder.empty(2, 1);
+            sheet.update(0, 0, "3");
+            sheet.update(1, 0, "A0 = 1 + 2");
+            assertEquals("Formula was not evaluated as parsed.", "1", sheet.valueAt(1, 0).getContent());
+        }
+        for (SheetBuilder builder : List.of(
+                new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing()).interpretFormulas(),
+                new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing()))) {
+            Sheet sheet = builder.empty(2, 1);
+            sheet.update(0, 0, "3");
+            sheet.update(1, 0, "A0 = 1 + 2");
+            assertEquals("Formula was not evaluated as parsed.", "2", sheet.valueAt(1, 0).getContent());
+        }
+    }
+
+    @Test
+    public void testDefaultSheetsRunOptimizedPrograms() throws Exception {
+        Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(2, 3);
+        sheet.update(0, 0, "3");
+        // flattened, folded and with a repeated sub-expression
+        sheet.update(0, 1, "(A0 * 2) + (A0 * 2) + MEAN(1, 2, 3) * 60");
+        sheet.update(0, 2, "(A0 - 1) - 1");
+        assertEquals("Optimized program has the wrong value.", "132", sheet.valueAt(0, 1).getContent());
+        assertEquals("Optimized program has the wrong value.", "1", sheet.valueAt(0, 2).getContent());
+        sheet.update(0, 0, "4");
+        assertEquals("Optimized program was not run again.", "136", sheet.valueAt(0, 1).getContent());
+    }
+
+    @Test
+    public void testProgramsFallBackToInterpreter() throws Exception {
+        Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .includeBuiltIn("hundred", new Constant(100))
+                .empty(2, 1);
+        sheet.update(0, 0, "hundred + 1");
+        assertEquals("Formula using a built-in was not interpreted.",
+                "101", sheet.valueAt(0, 0).getContent());
+        sheet.update(1, 0, "A0 * 2");
+        assertEquals("Program did not read the interpreted cell.",
+                "202", sheet.valueAt(1, 0).getContent());
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws Exception {
+        Path file = Files.createTempFile("sheep", ".csv");
+        try {
+            Files.writeString(file, "1,2,\"=MEAN(A0, B0)\"\r\n=A0 + B0,\"foo\"\n");
+            SheetBuilder builder = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing());
+            Sheet sheet = builder.loadCsv(file.toString());
+            assertEquals("Sheet has the wrong amount of columns.", 3, sheet.getColumns());
+            assertEquals("Quoted formula was not parsed.", "1", sheet.valueAt(0, 2).getContent());
+            assertEquals("Formula was not evaluated.", "3", sheet.valueAt(1, 0).getContent());
+
+            StringWriter values = new StringWriter();
+            sheet.encodeCsv(values, true);
+            assertEquals("Values were not exported.", "1,2,1\n3,foo,\n", values.toString());
+
+            StringWriter formulas = new StringWriter();
+            sheet.encodeCsv(formulas, false);
+            Files.writeString(file, formulas.toString());
+            assertEquals("Exported formulas did not load back.",
+                    sheet.encode(), builder.loadCsv(file.toString()).encode());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testParsedEmptyCellsHoldTheDefault() throws Exception {
+        // a parsed empty cell is a different instance than the default expression
+        Sheet sheet = new Sheet(new ComplexParser(new CoreFactory()), Map.of(), new Nothing(),
+                new Expression[][]{{new Nothing(), new Constant(1)}}, 2);
+        assertEquals("Empty cell was stored as a formula.", 0, sheet.values().store().formula(0));
+        assertEquals("Filled cell has the wrong value.", "1", sheet.valueAt(0, 1).getContent());
+    }
+}
@@ -0,0 +1,58 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SheetChangeTest {
+    private Sheet sheet;
+    private List<String> changes;
+
+    @Before
+    public void setUp() {
+        sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(4, 3);
+        changes = new ArrayList<>();
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.update(2, 0, "A1 * 0");
+        sheet.addListener(change -> changes.add(change.toString()));
+    }
+
+    @Test
+    public void testUpdateReportsChangedValuesOnly() {
+        sheet.update(0, 0, "2");
+        // A2 is still 0, so it is not reported
+        assertEquals(List.of("[A0, A1]"), changes);
+    }
+
+    @Test
+    public void testFailedUpdateReportsNothing() {
+        sheet.update(0, 0, "1 +");
+        assertEquals(List.of(), changes);
+    }
+
+    @Test
+    public void testFillReportsEveryFilledCell() throws Exception {
+        sheet.update(0, 1, "A0");
+        sheet.fillDown(new CellLocation(0, 1), 3);
+        assertEquals(List.of("[B0]", "[B0, B1, B2, B3]"), changes);
+    }
+
+    @Test
+    public void testBatchIsCoalesced() {
+        sheet.batch(() -> {
+            sheet.update(3, 2, "5");
+            sheet.update(0, 0, "3");
+            sheet.update(3, 2, "6");
+        });
+        assertEquals(List.of("[A0, A1, C3]"), changes);
+    }
+}
@@ -0,0 +1,101 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.TypeError;
+import sheep.expression.basic.Constant;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+import sheep.parsing.ParseException;
+import sheep.parsing.Parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class SheetFileTest {
+    private SheetBuilder builder;
+    private Sheet sheet;
+
+    @Before
+    public void setUp() throws TypeError {
+        builder = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .includeBuiltIn("hundred", new Constant(100));
+        sheet = builder.empty(10, 3);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        sheet.fillDown(new CellLocation(1, 0), 9);
+        sheet.update(0, 1, "A9 * hundred");
+        sheet.update(0, 2, "foo");
+    }
+
+    private byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sheet.encodeBinary(out);
+        return out.toByteArray();
+    }
+
+    private Sheet read(byte[] bytes) throws IOException, ParseException, TypeError {
+        return read(bytes, new ComplexParser(new CoreFactory()));
+    }
+
+    private Sheet read(byte[] bytes, Parser parser) throws IOException, ParseException, TypeError {
+        return SheetFile.read(new ByteArrayInputStream(bytes), parser,
+                (rows, columns) -> builder.empty(rows, columns));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Sheet read = read(write());
+        assertEquals("Formulas were not restored.", sheet.encode(), read.encode());
+        assertEquals("Values were not restored.", "1000", read.valueAt(0, 1).getContent());
+        assertEquals("Values were not restored.", "foo", read.valueAt(0, 2).getContent());
+
+        read.update(0, 0, "2");
+        assertEquals("Dependencies were not restored.", "1100", read.valueAt(0, 1).getContent());
+    }
+
+    @Test
+    public void testCorruptValuesAreRecalculated() throws Exception {
+        byte[] bytes = write();
+        bytes[bytes.length - 9] ^= 1;
+        assertEquals("Corrupt values were not recalculated.",
+                "1000", read(bytes).valueAt(0, 1).getContent());
+    }
+
+    @Test
+    public void testEqualFormulasShareAnEntry() throws Exception {
+        int before = ByteBuffer.wrap(write()).getInt(20);
+        sheet.update(5, 1, "A0 + 2");
+        sheet.update(6, 1, "A0 + 2");
+        assertEquals("Equal formulas parsed separately should share a dictionary entry.",
+                before + 1, ByteBuffer.wrap(write()).getInt(20));
+    }
+
+    @Test
+    public void testOnlyTheDictionaryIsParsed() throws Exception {
+        byte[] bytes = write();
+        int entries = ByteBuffer.wrap(bytes).getInt(20);
+        Parser complex = new ComplexParser(new CoreFactory());
+        List<String> parsed = new ArrayList<>();
+        Sheet read = read(bytes, input -> {
+            parsed.add(input);
+            return complex.parse(input);
+        });
+        assertEquals("Values were parsed as well as the dictionary.", entries, parsed.size());
+        assertEquals("Value equal to its formula was not restored.",
+                "foo", read.valueAt(0, 2).getContent());
+    }
+
+    @Test
+    public void testNotBinary() {
+        assertThrows(IOException.class, () -> read("1|2\n3|4".getBytes()));
+    }
+}
@@ -0,0 +1,121 @@
+package sheep.sheets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SheetJournalTest {
+    @Rule
+    public TemporaryFolder temporary = new TemporaryFolder();
+
+    private SheetBuilder builder;
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        builder = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .journal(JournalSync.EVERY_WRITE);
+        directory = temporary.getRoot().toPath();
+        file = directory.resolve("sheet.sheep");
+        Files.writeString(file, "1|A0 + 1\n|\n|\n");
+    }
+
+    @Test
+    public void testReplayAndCompact() throws Exception {
+        Sheet sheet = builder.load(file.toString());
+        sheet.update(0, 0, "5");
+        sheet.update(1, 0, "A0 * 2");
+        sheet.fillDown(new CellLocation(1, 0), 2);
+        sheet.flushJournal();
+
+        Sheet replayed = builder.load(file.toString());
+        assertEquals("Journal was not replayed.", sheet.encode(), replayed.encode());
+        assertEquals("Replayed cells were not evaluated.", "20", replayed.valueAt(2, 0).getContent());
+
+        replayed.compactJournal();
+        assertEquals("Snapshot does not hold the journaled updates.",
+                sheet.encode(), Files.readString(file));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals("Compacted segments were not deleted.", 2, files.count());
+        }
+    }
+
+    @Test
+    public void testCompactWithPagedStore() throws Exception {
+        Path pages = directory.resolve("cells.pages");
+        builder.pageTo(pages, 1024);
+        Sheet sheet = builder.load(file.toString());
+        sheet.update(0, 0, "7");
+        sheet.compactJournal();
+        assertEquals("Snapshot does not hold the journaled updates.",
+                sheet.encode(), Files.readString(file));
+        assertEquals("Compaction overwrote the cells of the edited sheet.",
+                "8", sheet.valueAt(0, 1).getContent());
+        assertTrue("Compaction did not use a page file of its own.",
+                Files.exists(directory.resolve("cells.pages.compaction")));
+    }
+
+    @Test
+    public void testCloseWritesJournal() throws Exception {
+        builder.journal(JournalSync.NEVER);
+        Sheet sheet = builder.load(file.toString());
+        sheet.update(0, 0, "3");
+        sheet.close();
+        sheet.close();
+        sheet.update(0, 0, "4");
+
+        Sheet replayed = builder.load(file.toString());
+        assertEquals("Journal was not written when the sheet was closed.",
+                "4", replayed.valueAt(0, 1).getContent());
+    }
+
+    @Test
+    public void testReplayStopsAtTruncatedRecord() throws Exception {
+        Sheet sheet = builder.load(file.toString());
+        sheet.update(0, 0, "5");
+        sheet.update(0, 0, "6");
+        sheet.close();
+        Path segment = directory.resolve("sheet.sheep.journal.0");
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 2));
+
+        Sheet replayed = builder.load(file.toString());
+        assertEquals("Complete record was not replayed.", "6", replayed.valueAt(0, 1).getContent());
+        replayed.update(1, 0, "A0 * 2");
+        replayed.close();
+        assertEquals("Journal was not continued after a torn record.",
+                "10", builder.load(file.toString()).valueAt(1, 0).getContent());
+    }
+
+    @Test
+    public void testReplayStopsAtCorruptRecord() throws Exception {
+        Sheet sheet = builder.load(file.toString());
+        sheet.update(0, 0, "5");
+        sheet.update(0, 0, "6");
+        sheet.update(0, 1, "A0 * 3");
+        sheet.close();
+        Path segment = directory.resolve("sheet.sheep.journal.0");
+        byte[] bytes = Files.readAllBytes(segment);
+        // the formula of the second record, after the 18 bytes of the first one
+        bytes[18 + 13] ^= 1;
+        Files.write(segment, bytes);
+
+        Sheet replayed = builder.load(file.toString());
+        assertEquals("Records after a corrupt record were replayed.",
+                "5|A0 + 1\n|\n|", replayed.encode());
+    }
+}
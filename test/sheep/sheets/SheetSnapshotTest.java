@@ -0,0 +1,26 @@
+package sheep.sheets;
+
+import org.junit.Test;
+import sheep.expression.CoreFactory;
+import sheep.expression.basic.Nothing;
+import sheep.parsing.ComplexParser;
+
+import static org.junit.Assert.assertEquals;
+
+public class SheetSnapshotTest {
+    @Test
+    public void testSnapshotIsUnaffectedByUpdates() {
+        Sheet sheet = new SheetBuilder(new ComplexParser(new CoreFactory()), new Nothing())
+                .empty(2, 2);
+        sheet.update(0, 0, "1");
+        sheet.update(1, 0, "A0 + 1");
+        String encoded = sheet.encode();
+
+        SheetSnapshot snapshot = sheet.snapshot();
+        sheet.update(0, 0, "5");
+        sheet.update(1, 1, "foo");
+        assertEquals("Snapshot value changed.", "2", snapshot.valueAt(1, 0).getContent());
+        assertEquals("Snapshot formula changed.", "", snapshot.formulaAt(1, 1).getContent());
+        assertEquals("Snapshot encoding differs from the sheet when taken.", encoded, snapshot.encode());
+    }
+}